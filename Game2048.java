@@ -5,15 +5,33 @@ import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
 import java.awt.RenderingHints;
+import java.awt.Transparency;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.util.Random;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.swing.JPanel;
 import javax.swing.JFrame;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 
 
 /**
@@ -34,37 +52,101 @@ public class Game2048 extends JPanel {
 
     final static int target = 2048;
 
-    static int highest;
-    static int score;
+    private static final int FRAME_MILLIS = 1000 / 144;
+    private static final long ANIMATION_NANOS = 150 * 1000000L;
+    private static final float SLIDE_END = 0.6f;
+
+    private int highest;
+    private int score;
 
     private Color gridColor = new Color(0xBBADA0);
     private Color emptyColor = new Color(0xCDC1B4);
     private Color startColor = new Color(0xFFEBCD);
+    private Color[] tileColors = new Color[Grid2048.MAX_RANK + 1];
 
-    private Random rand = new Random();
+    private SplitMix64 rand = new SplitMix64(System.nanoTime());
 
-    private Tile[][] tiles;
-    private int side = 4;
+    private Grid2048 grid;
+    private int side;
     private State gamestate = State.start;
-    private boolean checkingAvailableMoves;
 
-    public Game2048() {
+    private Expectimax2048 solver = new Expectimax2048(6, 100);
+    private int hint = -1;
+    private boolean hintSearching;
+
+    private int layoutWidth = -1;
+    private int layoutHeight = -1;
+    private int gridX, gridY, gridSize;
+    private int gap, stride, cell, arc;
+    private Font titleFont, textFont;
+    private Font[] tileFonts = new Font[11];
+    private BufferedImage[] sprites = new BufferedImage[Grid2048.MAX_RANK + 1];
+
+    private History2048 history;
+    private boolean scrubbing;
+
+    private Slides2048 slides;
+    private int spawned = -1;
+    private long animationStart;
+    private float progress = 1f;
+    private Timer animation = new Timer(FRAME_MILLIS, e -> {
+        progress = Math.min(1f, (float) (System.nanoTime() - animationStart) / ANIMATION_NANOS);
+        if (progress >= 1f)
+            stopAnimation();
+        repaint();
+    });
+
+    public Game2048(int side) {
+        if (side < 3)
+            throw new IllegalArgumentException("side " + side);
+        this.side = side;
+        this.grid = new Grid2048(side);
+        this.slides = new Slides2048(side * side);
+        this.history = new History2048(grid.words() + 2, Integer.MAX_VALUE);
+
+        for (int rank = 1; rank < tileColors.length; rank++) {
+            if (rank + 1 < colorTable.length)
+                tileColors[rank] = colorTable[rank + 1];
+            else
+                tileColors[rank] = Color.getHSBColor((0.12f + 0.07f * (rank - 11)) % 1f, 0.6f, 0.7f);
+        }
+
         setPreferredSize(new Dimension(900, 700));
         setBackground(new Color(0xFAF8EF));
         setFont(new Font("Tahoma", Font.BOLD, 48));
         setFocusable(true);
 
-        addMouseListener(new MouseAdapter() {
+        MouseAdapter mouse = new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
-                startGame();
+                scrubbing = onTimeline(e.getX(), e.getY());
+                if (scrubbing)
+                    scrub(e.getX());
+                else
+                    startGame();
                 repaint();
             }
-        });
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if (scrubbing) {
+                    scrub(e.getX());
+                    repaint();
+                }
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                scrubbing = false;
+            }
+        };
+        addMouseListener(mouse);
+        addMouseMotionListener(mouse);
 
         addKeyListener(new KeyAdapter() {
             @Override
             public void keyPressed(KeyEvent e) {
+                stopAnimation();
                 switch (e.getKeyCode()) {
                     case KeyEvent.VK_UP:
                         moveUp();
@@ -78,6 +160,18 @@ public class Game2048 extends JPanel {
                     case KeyEvent.VK_RIGHT:
                         moveRight();
                         break;
+                    case KeyEvent.VK_H:
+                        if (gamestate == State.running && side == Board2048.SIDE && !hintSearching)
+                            searchHint();
+                        break;
+                    case KeyEvent.VK_U:
+                        if (history.canUndo())
+                            restore(history.undo());
+                        break;
+                    case KeyEvent.VK_R:
+                        if (history.canRedo())
+                            restore(history.redo());
+                        break;
                 }
                 repaint();
             }
@@ -91,6 +185,9 @@ public class Game2048 extends JPanel {
         g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
                 RenderingHints.VALUE_ANTIALIAS_ON);
 
+        if (getWidth() != layoutWidth || getHeight() != layoutHeight)
+            layout(getWidth(), getHeight());
+
         drawGrid(g);
     }
 
@@ -99,214 +196,1733 @@ public class Game2048 extends JPanel {
             score = 0;
             highest = 0;
             gamestate = State.running;
-            tiles = new Tile[side][side];
+            grid.clear();
             addRandomTile();
             addRandomTile();
+
+            history.clear();
+            save();
+        }
+    }
+
+    /**
+     * Records the current position after the cursor of the history, dropping
+     * any positions that could have been redone. A snapshot is the packed
+     * board, score and highest tile in one long, and the spawn RNG state.
+     */
+    private void save() {
+        int offset = history.push();
+        long[] buffer = history.buffer();
+        int words = grid.words();
+        grid.save(buffer, offset);
+        buffer[offset + words] = (long) score << 32 | highest;
+        buffer[offset + words + 1] = rand.getState();
+    }
+
+    private void restore(int offset) {
+        stopAnimation();
+        hint = -1;
+        spawned = -1;
+
+        long[] buffer = history.buffer();
+        int words = grid.words();
+        grid.load(buffer, offset);
+        score = (int) (buffer[offset + words] >>> 32);
+        highest = (int) buffer[offset + words];
+        rand.setState(buffer[offset + words + 1]);
+
+        if (highest == target)
+            gamestate = State.won;
+        else
+            gamestate = movesAvailable() ? State.running : State.over;
+    }
+
+    private int timelineY() {
+        return gridY + gridSize + textFont.getSize();
+    }
+
+    private boolean onTimeline(int x, int y) {
+        return history.size() > 1 && x >= gridX - gap && x <= gridX + gridSize + gap
+                && Math.abs(y - timelineY()) <= Math.max(gap, 8);
+    }
+
+    private void scrub(int x) {
+        int last = history.size() - 1;
+        int index = Math.round((float) (x - gridX) * last / gridSize);
+        index = Math.max(0, Math.min(last, index));
+        if (index != history.cursor())
+            restore(history.seek(index));
+    }
+
+    /**
+     * Sizes the grid to the panel, keeping the proportions of the original
+     * 499px board (15px gaps around 106px cells on a 4x4 board).
+     */
+    private void layout(int width, int height) {
+        layoutWidth = width;
+        layoutHeight = height;
+
+        int available = Math.max(side * 4, Math.min(width - 200, height - 200));
+        gap = Math.max(1, available / (8 * side + 1));
+        stride = (available - gap) / side;
+        cell = stride - gap;
+        arc = Math.max(gap, cell / 7);
+        gridSize = stride * side + gap;
+        gridX = (width - gridSize) / 2;
+        gridY = (height - gridSize) / 2;
+
+        titleFont = new Font("Tahoma", Font.BOLD, Math.max(16, gridSize * 128 / 499));
+        textFont = new Font("Tahoma", Font.BOLD, Math.max(10, gridSize * 20 / 499));
+        for (int digits = 1; digits < tileFonts.length; digits++) {
+            int size = Math.min(cell * 48 / 106, cell * 100 / (70 * digits));
+            tileFonts[digits] = new Font("Tahoma", Font.BOLD, Math.max(6, size));
         }
+
+        Arrays.fill(sprites, null);
     }
 
     void drawGrid(Graphics2D g) {
         g.setColor(gridColor);
-        g.fillRoundRect(200, 100, 499, 499, 15, 15);
+        g.fillRoundRect(gridX, gridY, gridSize, gridSize, arc, arc);
 
         if (gamestate == State.running) {
 
-            for (int r = 0; r < side; r++) {
-                for (int c = 0; c < side; c++) {
-                    if (tiles[r][c] == null) {
-                        g.setColor(emptyColor);
-                        g.fillRoundRect(215 + c * 121, 115 + r * 121, 106, 106, 15, 15);
-                    } else {
+            if (progress < SLIDE_END) {
+                drawSlides(g, progress / SLIDE_END);
+            } else {
+                for (int r = 0; r < side; r++) {
+                    for (int c = 0; c < side; c++) {
                         drawTile(g, r, c);
                     }
                 }
+                if (progress < 1f)
+                    drawPops(g, (progress - SLIDE_END) / (1f - SLIDE_END));
+            }
+
+            if (hint >= 0) {
+                g.setColor(gridColor.darker());
+                g.setFont(textFont);
+                drawCentered(g, "Hint: " + Expectimax2048.MOVE_NAMES[hint], gridY + gridSize + textFont.getSize() * 3);
             }
         } else {
             g.setColor(startColor);
-            g.fillRoundRect(215, 115, 469, 469, 15, 15);
+            g.fillRoundRect(gridX + gap, gridY + gap, gridSize - 2 * gap, gridSize - 2 * gap, arc, arc);
 
             g.setColor(gridColor.darker());
-            g.setFont(new Font("Tahoma", Font.BOLD, 128));
-            g.drawString("2048", 290, 270);
+            g.setFont(titleFont);
+            drawCentered(g, "2048", gridY + gridSize * 170 / 499);
 
-            g.setFont(new Font("Tahoma", Font.BOLD, 20));
+            g.setFont(textFont);
 
             if (gamestate == State.won) {
-                g.drawString("You Made It!", 390, 350);
+                drawCentered(g, "You Made It!", gridY + gridSize * 250 / 499);
 
             } else if (gamestate == State.over)
-                g.drawString("Game Over", 400, 350);
+                drawCentered(g, "Game Over", gridY + gridSize * 250 / 499);
 
             g.setColor(gridColor);
-            g.drawString("Click to start a new game", 325, 470);
-            g.drawString("(use arrow keys to move tiles)", 300, 530);
+            drawCentered(g, "Click to start a new game", gridY + gridSize * 360 / 499);
+            drawCentered(g, "(arrow keys move tiles, H shows a hint)", gridY + gridSize * 410 / 499);
+            drawCentered(g, "(U undoes, R redoes a move)", gridY + gridSize * 445 / 499);
         }
+
+        drawTimeline(g);
     }
 
-    void drawTile(Graphics2D g, int r, int c) {
-        int value = tiles[r][c].getValue();
+    /**
+     * A bar under the grid with a knob at the current position in the history;
+     * clicking or dragging along it rewinds the game to that move.
+     */
+    private void drawTimeline(Graphics2D g) {
+        int last = history.size() - 1;
+        if (last < 1)
+            return;
 
-        g.setColor(colorTable[(int) (Math.log(value) / Math.log(2)) + 1]);
-        g.fillRoundRect(215 + c * 121, 115 + r * 121, 106, 106, 15, 15);
-        String s = String.valueOf(value);
+        int y = timelineY();
+        int h = Math.max(4, gap / 2);
+        g.setColor(emptyColor);
+        g.fillRoundRect(gridX, y - h / 2, gridSize, h, h, h);
 
-        g.setColor(value < 128 ? colorTable[0] : colorTable[1]);
+        int knob = h * 3;
+        int x = gridX + (int) ((long) gridSize * history.cursor() / last);
+        g.setColor(gridColor.darker());
+        g.fillOval(x - knob / 2, y - knob / 2, knob, knob);
+    }
 
-        FontMetrics fm = g.getFontMetrics();
-        int asc = fm.getAscent();
-        int dec = fm.getDescent();
+    void drawTile(Graphics2D g, int r, int c) {
+        int i = r * side + c;
+        boolean popping = progress < 1f && (i == spawned || slides.merged[i]);
+        g.drawImage(sprite(popping ? 0 : grid.get(r, c)), cellX(c), cellY(r), null);
+    }
 
-        int x = 215 + c * 121 + (106 - fm.stringWidth(s)) / 2;
-        int y = 115 + r * 121 + (asc + (106 - (asc + dec)) / 2);
+    /**
+     * First part of a move: every tile glides from its old cell to its new one,
+     * merging tiles still showing their old value.
+     */
+    private void drawSlides(Graphics2D g, float t) {
+        float eased = t * (2f - t);
 
-        g.drawString(s, x, y);
+        for (int r = 0; r < side; r++)
+            for (int c = 0; c < side; c++)
+                g.drawImage(sprite(0), cellX(c), cellY(r), null);
+
+        for (int k = 0; k < slides.count; k++) {
+            int from = slides.from[k];
+            int to = slides.to[k];
+            int x = cellX(from % side) + (int) ((cellX(to % side) - cellX(from % side)) * eased);
+            int y = cellY(from / side) + (int) ((cellY(to / side) - cellY(from / side)) * eased);
+            g.drawImage(sprite(slides.ranks[k]), x, y, null);
+        }
     }
 
-    private void addRandomTile() {
-        int pos = rand.nextInt(side * side);
-        int row, col;
-        do {
-            pos = (pos + 1) % (side * side);
-            row = pos / side;
-            col = pos % side;
-        } while (tiles[row][col] != null);
+    /**
+     * Second part of a move: merged tiles pulse and the new tile grows in.
+     */
+    private void drawPops(Graphics2D g, float t) {
+        int grow = (int) (cell * 0.2f * Math.sin(Math.PI * t));
+        for (int i = 0; i < side * side; i++) {
+            if (slides.merged[i] || i == spawned) {
+                int size = i == spawned ? (int) (cell * t) : cell + grow;
+                int x = cellX(i % side) + (cell - size) / 2;
+                int y = cellY(i / side) + (cell - size) / 2;
+                g.drawImage(sprite(grid.get(i / side, i % side)), x, y, size, size, null);
+            }
+        }
+    }
 
-        int val = rand.nextInt(10) == 0 ? 4 : 2;
-        tiles[row][col] = new Tile(val);
+    private void startAnimation() {
+        animationStart = System.nanoTime();
+        progress = 0f;
+        animation.start();
     }
 
-    private boolean move(int countDownFrom, int yIncr, int xIncr) {
-        boolean moved = false;
+    /**
+     * Jumps to the end of the running animation, if any. The board itself is
+     * always up to date; only the picture lags behind.
+     */
+    private void stopAnimation() {
+        animation.stop();
+        progress = 1f;
+    }
 
-        for (int i = 0; i < side * side; i++) {
-            int j = Math.abs(countDownFrom - i);
+    /**
+     * Returns the pre-rendered image of a tile at the current cell size, rank 0
+     * being an empty cell. Sprites are drawn once with antialiased shapes and
+     * text on a transparent background, so a repaint is one blit per cell;
+     * layout() drops them when the panel is resized.
+     */
+    private BufferedImage sprite(int rank) {
+        BufferedImage sprite = sprites[rank];
+        if (sprite != null)
+            return sprite;
 
-            int r = j / side;
-            int c = j % side;
+        GraphicsConfiguration gc = getGraphicsConfiguration();
+        sprite = gc != null ? gc.createCompatibleImage(cell, cell, Transparency.TRANSLUCENT)
+                : new BufferedImage(cell, cell, BufferedImage.TYPE_INT_ARGB);
 
-            if (tiles[r][c] == null)
-                continue;
+        Graphics2D g = sprite.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
 
-            int nextR = r + yIncr;
-            int nextC = c + xIncr;
+        if (rank == 0) {
+            g.setColor(emptyColor);
+            g.fillRoundRect(0, 0, cell, cell, arc, arc);
+        } else {
+            int value = 1 << rank;
 
-            while (nextR >= 0 && nextR < side && nextC >= 0 && nextC < side) {
+            g.setColor(tileColors[rank]);
+            g.fillRoundRect(0, 0, cell, cell, arc, arc);
+            String s = String.valueOf(value);
 
-                Tile next = tiles[nextR][nextC];
-                Tile curr = tiles[r][c];
+            g.setColor(value < 128 ? colorTable[0] : colorTable[1]);
+            g.setFont(tileFonts[s.length()]);
 
-                if (next == null) {
+            FontMetrics fm = g.getFontMetrics();
+            int asc = fm.getAscent();
+            int dec = fm.getDescent();
+
+            int x = (cell - fm.stringWidth(s)) / 2;
+            int y = asc + (cell - (asc + dec)) / 2;
+
+            g.drawString(s, x, y);
+        }
+        g.dispose();
 
-                    if (checkingAvailableMoves)
-                        return true;
+        sprites[rank] = sprite;
+        return sprite;
+    }
 
-                    tiles[nextR][nextC] = curr;
-                    tiles[r][c] = null;
-                    r = nextR;
-                    c = nextC;
-                    nextR += yIncr;
-                    nextC += xIncr;
-                    moved = true;
+    private int cellX(int c) {
+        return gridX + gap + c * stride;
+    }
 
-                } else if (next.canMergeWith(curr)) {
+    private int cellY(int r) {
+        return gridY + gap + r * stride;
+    }
 
-                    if (checkingAvailableMoves)
-                        return true;
+    private void drawCentered(Graphics2D g, String s, int y) {
+        g.drawString(s, (getWidth() - g.getFontMetrics().stringWidth(s)) / 2, y);
+    }
 
-                    int value = next.mergeWith(curr);
-                    if (value > highest)
-                        highest = value;
-                    score += value;
-                    tiles[r][c] = null;
-                    moved = true;
-                    break;
-                } else
-                    break;
+    private void addRandomTile() {
+        spawned = grid.addRandomTile(rand);
+    }
+
+    /**
+     * Runs the hint search off the event thread, so keys and the animation
+     * timer keep working meanwhile. The hint is dropped if the board changed
+     * before the search finished.
+     */
+    private void searchHint() {
+        long board = grid.pack();
+        hintSearching = true;
+        new SwingWorker<Integer, Void>() {
+            @Override
+            protected Integer doInBackground() {
+                return solver.bestMove(board);
             }
-        }
 
-        if (moved) {
-            if (highest < target) {
-                clearMerged();
-                addRandomTile();
-                if (!movesAvailable()) {
-                    gamestate = State.over;
+            @Override
+            protected void done() {
+                hintSearching = false;
+                try {
+                    if (gamestate == State.running && grid.pack() == board)
+                        hint = get();
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new IllegalStateException("hint search failed", e);
                 }
-            } else if (highest == target)
-                gamestate = State.won;
-        }
+                repaint();
+            }
+        }.execute();
+    }
+
+    private boolean move(int direction) {
+        if (gamestate != State.running)
+            return false;
+
+        int points = grid.move(direction, slides);
+        if (points < 0)
+            return false;
 
-        return moved;
+        hint = -1;
+        score += points;
+
+        int value = 1 << grid.maxRank();
+        if (value > highest)
+            highest = value;
+
+        if (highest < target) {
+            addRandomTile();
+            if (!movesAvailable()) {
+                gamestate = State.over;
+            }
+        } else if (highest == target)
+            gamestate = State.won;
+
+        save();
+        if (gamestate == State.running)
+            startAnimation();
+
+        return true;
     }
 
     boolean moveUp() {
-        return move(0, -1, 0);
+        return move(Board2048.UP);
     }
 
     boolean moveDown() {
-        return move(side * side - 1, 1, 0);
+        return move(Board2048.DOWN);
     }
 
     boolean moveLeft() {
-        return move(0, 0, -1);
+        return move(Board2048.LEFT);
     }
 
     boolean moveRight() {
-        return move(side * side - 1, 0, 1);
-    }
-
-    void clearMerged() {
-        for (Tile[] row : tiles)
-            for (Tile tile : row)
-                if (tile != null)
-                    tile.setMerged(false);
+        return move(Board2048.RIGHT);
     }
 
     boolean movesAvailable() {
-        checkingAvailableMoves = true;
-        boolean hasMoves = moveUp() || moveDown() || moveLeft() || moveRight();
-        checkingAvailableMoves = false;
-        return hasMoves;
+        return grid.canMove();
     }
 
+    /**
+     * Usage: java Game2048 [side], where side is 3 or more (default 4).
+     */
     public static void main(String[] args) {
+        int side = args.length > 0 ? Integer.parseInt(args[0]) : Board2048.SIDE;
+
         JFrame f = new JFrame();
         f.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         f.setTitle("Adarsh's 2048");
         f.setResizable(true);
-        f.add(new Game2048(), BorderLayout.CENTER);
+        f.add(new Game2048(side), BorderLayout.CENTER);
         f.pack();
         f.setLocationRelativeTo(null);
         f.setVisible(true);
     }
 }
 
-class Tile {
-    private boolean merged;
-    private int value;
+/**
+ * Headless 4x4 engine. The whole board is packed into one long with a 4-bit
+ * exponent per cell (0 = empty, n = tile 2^n): row r lives in bits 16r..16r+15
+ * and column c is nibble c of its row. Moves are applied through lookup tables
+ * covering all 65536 possible rows, so a move is four table reads with no
+ * allocation. Two 32768 tiles do not merge, as 2^16 does not fit in a nibble.
+ */
+final class Board2048 {
+
+    static final int SIDE = 4;
+
+    static final int UP = 0;
+    static final int DOWN = 1;
+    static final int LEFT = 2;
+    static final int RIGHT = 3;
+
+    static final int MAX_RANK = 15;
 
-    Tile(int val) {
-        value = val;
+    private static final int ROWS = 1 << 16;
+
+    private static final char[] ROW_LEFT = new char[ROWS];
+    private static final char[] ROW_RIGHT = new char[ROWS];
+    private static final long[] COL_UP = new long[ROWS];
+    private static final long[] COL_DOWN = new long[ROWS];
+    private static final int[] SCORE_LEFT = new int[ROWS];
+    private static final int[] SCORE_RIGHT = new int[ROWS];
+    private static final boolean[] ROW_CAN_MOVE = new boolean[ROWS];
+    private static final byte[] SELECT_IN_BYTE = new byte[256 * 8];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            int k = 0;
+            for (int bit = 0; bit < 8; bit++)
+                if ((b & (1 << bit)) != 0)
+                    SELECT_IN_BYTE[b << 3 | k++] = (byte) bit;
+        }
+
+        for (int row = 0; row < ROWS; row++) {
+            int result = 0;
+            int n = 0;
+            int pending = 0;
+            int points = 0;
+
+            for (int i = 0; i < SIDE; i++) {
+                int rank = (row >>> (4 * i)) & 0xF;
+                if (rank == 0)
+                    continue;
+
+                if (pending == rank && rank != MAX_RANK) {
+                    result |= (rank + 1) << (4 * n++);
+                    points += 1 << (rank + 1);
+                    pending = 0;
+                } else {
+                    if (pending != 0)
+                        result |= pending << (4 * n++);
+                    pending = rank;
+                }
+            }
+            if (pending != 0)
+                result |= pending << (4 * n);
+
+            ROW_LEFT[row] = (char) result;
+            SCORE_LEFT[row] = points;
+        }
+
+        for (int row = 0; row < ROWS; row++) {
+            int reversed = reverseRow(row);
+            ROW_RIGHT[row] = (char) reverseRow(ROW_LEFT[reversed]);
+            SCORE_RIGHT[row] = SCORE_LEFT[reversed];
+            COL_UP[row] = unpackColumn(ROW_LEFT[row]);
+            COL_DOWN[row] = unpackColumn(ROW_RIGHT[row]);
+            ROW_CAN_MOVE[row] = ROW_LEFT[row] != row || ROW_RIGHT[row] != row;
+        }
     }
 
-    int getValue() {
-        return value;
+    private Board2048() {
+    }
+
+    static int get(long board, int r, int c) {
+        return (int) (board >>> (16 * r + 4 * c)) & 0xF;
+    }
+
+    static long set(long board, int r, int c, int rank) {
+        int shift = 16 * r + 4 * c;
+        return (board & ~(0xFL << shift)) | ((long) rank << shift);
+    }
+
+    static int maxRank(long board) {
+        int max = 0;
+        for (; board != 0; board >>>= 4)
+            max = Math.max(max, (int) (board & 0xF));
+        return max;
+    }
+
+    static long move(long board, int direction) {
+        long result = 0;
+        switch (direction) {
+            case UP: {
+                long t = transpose(board);
+                for (int c = 0; c < SIDE; c++)
+                    result |= COL_UP[row(t, c)] << (4 * c);
+                break;
+            }
+            case DOWN: {
+                long t = transpose(board);
+                for (int c = 0; c < SIDE; c++)
+                    result |= COL_DOWN[row(t, c)] << (4 * c);
+                break;
+            }
+            case LEFT:
+                for (int r = 0; r < SIDE; r++)
+                    result |= (long) ROW_LEFT[row(board, r)] << (16 * r);
+                break;
+            case RIGHT:
+                for (int r = 0; r < SIDE; r++)
+                    result |= (long) ROW_RIGHT[row(board, r)] << (16 * r);
+                break;
+            default:
+                throw new IllegalArgumentException("direction " + direction);
+        }
+        return result;
+    }
+
+    /**
+     * Points gained by merges when moving the board in the given direction.
+     */
+    static int score(long board, int direction) {
+        int[] table = direction == RIGHT || direction == DOWN ? SCORE_RIGHT : SCORE_LEFT;
+        if (direction == UP || direction == DOWN)
+            board = transpose(board);
+
+        int points = 0;
+        for (int r = 0; r < SIDE; r++)
+            points += table[row(board, r)];
+        return points;
+    }
+
+    /**
+     * True when at least one move changes the board: some row can slide left
+     * or right, or some column (a row of the transposed board) can.
+     */
+    static boolean canMove(long board) {
+        long t = transpose(board);
+        for (int r = 0; r < SIDE; r++)
+            if (ROW_CAN_MOVE[row(board, r)] || ROW_CAN_MOVE[row(t, r)])
+                return true;
+        return false;
+    }
+
+    /**
+     * Places a 2 (90%) or a 4 (10%) on a uniformly chosen empty cell. The
+     * board must have at least one empty cell.
+     */
+    static long addRandomTile(long board, SplitMix64 rand) {
+        int empty = emptyMask(board);
+        int pos = selectBit(empty, rand.nextInt(Integer.bitCount(empty)));
+
+        long rank = rand.nextInt(10) == 0 ? 2 : 1;
+        return board | (rank << (4 * pos));
+    }
+
+    /**
+     * One bit per cell, bit i set when nibble i of the board is empty.
+     */
+    static int emptyMask(long board) {
+        long m = board | (board >>> 1);
+        m |= m >>> 2;
+        m = ~m & 0x1111111111111111L;
+        m = (m | (m >>> 3)) & 0x0303030303030303L;
+        m = (m | (m >>> 6)) & 0x000F000F000F000FL;
+        m = (m | (m >>> 12)) & 0x000000FF000000FFL;
+        return (int) (m | (m >>> 24)) & 0xFFFF;
+    }
+
+    /**
+     * Position of the k-th (from 0) set bit of a 16-bit mask.
+     */
+    static int selectBit(int mask, int k) {
+        int low = mask & 0xFF;
+        int n = Integer.bitCount(low);
+        if (k < n)
+            return SELECT_IN_BYTE[low << 3 | k];
+        return 8 + SELECT_IN_BYTE[(mask >>> 8 & 0xFF) << 3 | (k - n)];
+    }
+
+    static long transpose(long x) {
+        long a1 = x & 0xF0F00F0FF0F00F0FL;
+        long a2 = x & 0x0000F0F00000F0F0L;
+        long a3 = x & 0x0F0F00000F0F0000L;
+        long a = a1 | (a2 << 12) | (a3 >>> 12);
+        long b1 = a & 0xFF00FF0000FF00FFL;
+        long b2 = a & 0x00FF00FF00000000L;
+        long b3 = a & 0x00000000FF00FF00L;
+        return b1 | (b2 >>> 24) | (b3 << 24);
+    }
+
+    private static int row(long board, int r) {
+        return (int) (board >>> (16 * r)) & 0xFFFF;
+    }
+
+    private static int reverseRow(int row) {
+        return ((row >>> 12) & 0x000F) | ((row >>> 4) & 0x00F0)
+                | ((row << 4) & 0x0F00) | ((row << 12) & 0xF000);
+    }
+
+    private static long unpackColumn(int row) {
+        long r = row;
+        return (r | (r << 12) | (r << 24) | (r << 36)) & 0x000F000F000F000FL;
+    }
+}
+
+/**
+ * Headless engine for square boards of any side, with one byte exponent per
+ * cell in row-major order (0 = empty, n = tile 2^n). Empty cells are also kept
+ * as a bitmask, so a spawn picks the k-th empty cell without scanning cells.
+ * Ranks stop at 30 so that tile values and points stay within an int. 4x4
+ * boards are moved through Board2048's lookup tables, so they follow the same
+ * rules as the engine, ranks stopping at 15 included.
+ */
+final class Grid2048 {
+
+    static final int MAX_RANK = 30;
+
+    final int side;
+
+    private final int maxRank;
+
+    private final byte[] cells;
+    private final long[] empty;
+
+    Grid2048(int side) {
+        this.side = side;
+        this.maxRank = side == Board2048.SIDE ? Board2048.MAX_RANK : MAX_RANK;
+        this.cells = new byte[side * side];
+        this.empty = new long[(cells.length + 63) >>> 6];
+        clear();
+    }
+
+    void clear() {
+        Arrays.fill(cells, (byte) 0);
+        Arrays.fill(empty, -1L);
+        if ((cells.length & 63) != 0)
+            empty[empty.length - 1] = (1L << cells.length) - 1;
+    }
+
+    int get(int r, int c) {
+        return cells[r * side + c];
     }
 
-    void setMerged(boolean m) {
-        merged = m;
+    int maxRank() {
+        int max = 0;
+        for (byte rank : cells)
+            max = Math.max(max, rank);
+        return max;
     }
 
-    boolean canMergeWith(Tile other) {
-        return !merged && other != null && !other.merged && value == other.getValue();
+    /**
+     * Moves the board in the given direction and returns the points gained by
+     * merges, or -1 if no tile moved.
+     */
+    int move(int direction) {
+        return move(direction, null);
     }
 
-    int mergeWith(Tile other) {
-        if (canMergeWith(other)) {
-            value *= 2;
-            merged = true;
-            return value;
+    /**
+     * Same as move(direction), also recording where every tile went into
+     * slides when it is not null.
+     */
+    int move(int direction, Slides2048 slides) {
+        if (slides != null)
+            slides.clear();
+
+        if (side == Board2048.SIDE) {
+            long board = pack();
+            long next = Board2048.move(board, direction);
+            if (next == board)
+                return -1;
+            if (slides != null)
+                trace(board, next, direction, slides);
+            unpack(next);
+            return Board2048.score(board, direction);
+        }
+
+        int points = 0;
+        boolean moved = false;
+        int step = step(direction);
+        for (int line = 0; line < side; line++) {
+            int start = start(direction, line);
+
+            // tiles are only ever written at or behind the read position
+            int out = start;
+            int pending = 0;
+            int pendingPos = 0;
+            for (int i = 0, pos = start; i < side; i++, pos += step) {
+                int rank = cells[pos];
+                if (rank == 0)
+                    continue;
+
+                if (pending == rank && rank < maxRank) {
+                    if (slides != null) {
+                        slides.slide(pendingPos, out, rank);
+                        slides.slide(pos, out, rank);
+                        slides.merged[out] = true;
+                    }
+                    moved |= put(out, rank + 1);
+                    out += step;
+                    points += 1 << (rank + 1);
+                    pending = 0;
+                } else {
+                    if (pending != 0) {
+                        if (slides != null)
+                            slides.slide(pendingPos, out, pending);
+                        moved |= put(out, pending);
+                        out += step;
+                    }
+                    pending = rank;
+                    pendingPos = pos;
+                }
+            }
+            if (pending != 0) {
+                if (slides != null)
+                    slides.slide(pendingPos, out, pending);
+                moved |= put(out, pending);
+                out += step;
+            }
+            for (int end = start + side * step; out != end; out += step)
+                moved |= put(out, 0);
+        }
+        return moved ? points : -1;
+    }
+
+    /**
+     * Records where every tile of a 4x4 board went in the move to next. Along
+     * each line, every tile of the result is either the next tile of the same
+     * rank or the next two tiles of the rank below.
+     */
+    private void trace(long board, long next, int direction, Slides2048 slides) {
+        int step = step(direction);
+        for (int line = 0; line < side; line++) {
+            int from = start(direction, line);
+            for (int k = 0, out = from; k < side; k++, out += step) {
+                int rank = (int) (next >>> (4 * out)) & 0xF;
+                if (rank == 0)
+                    break;
+
+                while ((board >>> (4 * from) & 0xF) == 0)
+                    from += step;
+                int source = (int) (board >>> (4 * from)) & 0xF;
+                slides.slide(from, out, source);
+                from += step;
+                if (source != rank) {
+                    while ((board >>> (4 * from) & 0xF) == 0)
+                        from += step;
+                    slides.slide(from, out, source);
+                    slides.merged[out] = true;
+                    from += step;
+                }
+            }
+        }
+    }
+
+    /**
+     * The cell a line starts from when moving in the given direction, that is
+     * the cell its tiles slide towards.
+     */
+    private int start(int direction, int line) {
+        switch (direction) {
+            case Board2048.UP:
+                return line;
+            case Board2048.DOWN:
+                return (side - 1) * side + line;
+            case Board2048.LEFT:
+                return line * side;
+            case Board2048.RIGHT:
+                return line * side + side - 1;
+            default:
+                throw new IllegalArgumentException("direction " + direction);
+        }
+    }
+
+    private int step(int direction) {
+        switch (direction) {
+            case Board2048.UP:
+                return side;
+            case Board2048.DOWN:
+                return -side;
+            case Board2048.LEFT:
+                return 1;
+            case Board2048.RIGHT:
+                return -1;
+            default:
+                throw new IllegalArgumentException("direction " + direction);
+        }
+    }
+
+    boolean canMove() {
+        if (side == Board2048.SIDE)
+            return Board2048.canMove(pack());
+
+        // with both tiles and empty cells some line holds both, so it can slide
+        int free = 0;
+        for (long word : empty)
+            free += Long.bitCount(word);
+        if (free > 0)
+            return free < cells.length;
+
+        for (int r = 0; r < side; r++) {
+            for (int c = 0; c < side; c++) {
+                int rank = cells[r * side + c];
+                if (rank < maxRank && ((c + 1 < side && cells[r * side + c + 1] == rank)
+                        || (r + 1 < side && cells[(r + 1) * side + c] == rank)))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Places a 2 (90%) or a 4 (10%) on a uniformly chosen empty cell and
+     * returns its index. The board must have at least one empty cell.
+     */
+    int addRandomTile(SplitMix64 rand) {
+        int count = 0;
+        for (long word : empty)
+            count += Long.bitCount(word);
+
+        int k = rand.nextInt(count);
+        int w = 0;
+        for (int n; k >= (n = Long.bitCount(empty[w])); w++)
+            k -= n;
+
+        long word = empty[w];
+        int base = 0;
+        for (int n; k >= (n = Long.bitCount(word & 0xFFFF)); base += 16, word >>>= 16)
+            k -= n;
+
+        int pos = (w << 6) + base + Board2048.selectBit((int) word & 0xFFFF, k);
+        put(pos, rand.nextInt(10) == 0 ? 2 : 1);
+        return pos;
+    }
+
+    /**
+     * Number of longs save() writes: the packed board on 4x4, otherwise one
+     * byte per cell.
+     */
+    int words() {
+        return side == Board2048.SIDE ? 1 : (cells.length + 7) >>> 3;
+    }
+
+    void save(long[] dst, int offset) {
+        if (side == Board2048.SIDE) {
+            dst[offset] = pack();
+            return;
+        }
+        for (int w = 0, i = 0; w < words(); w++) {
+            long word = 0;
+            for (int b = 0; b < 8 && i < cells.length; b++, i++)
+                word |= (cells[i] & 0xFFL) << (8 * b);
+            dst[offset + w] = word;
+        }
+    }
+
+    void load(long[] src, int offset) {
+        if (side == Board2048.SIDE) {
+            unpack(src[offset]);
+            return;
+        }
+        for (int w = 0, i = 0; w < words(); w++) {
+            long word = src[offset + w];
+            for (int b = 0; b < 8 && i < cells.length; b++, i++)
+                put(i, (int) (word >>> (8 * b)) & 0xFF);
+        }
+    }
+
+    /**
+     * Packs a 4x4 board into Board2048's long representation.
+     */
+    long pack() {
+        long board = 0;
+        for (int i = 0; i < 16; i++)
+            board |= (long) cells[i] << (4 * i);
+        return board;
+    }
+
+    void unpack(long board) {
+        for (int i = 0; i < 16; i++)
+            put(i, (int) (board >>> (4 * i)) & 0xF);
+    }
+
+    private boolean put(int pos, int rank) {
+        if (cells[pos] == rank)
+            return false;
+        cells[pos] = (byte) rank;
+        if (rank == 0)
+            empty[pos >>> 6] |= 1L << pos;
+        else
+            empty[pos >>> 6] &= ~(1L << pos);
+        return true;
+    }
+}
+
+/**
+ * Where every tile went during the last Grid2048 move, as parallel arrays of
+ * cell indices sized for a full board. Filled in place on each move, so
+ * recording and replaying a move allocates nothing.
+ */
+final class Slides2048 {
+
+    final int[] from;
+    final int[] to;
+    final byte[] ranks;
+    final boolean[] merged;
+    int count;
+
+    Slides2048(int cells) {
+        from = new int[cells];
+        to = new int[cells];
+        ranks = new byte[cells];
+        merged = new boolean[cells];
+    }
+
+    void clear() {
+        count = 0;
+        Arrays.fill(merged, false);
+    }
+
+    void slide(int fromCell, int toCell, int rank) {
+        from[count] = fromCell;
+        to[count] = toCell;
+        ranks[count] = (byte) rank;
+        count++;
+    }
+}
+
+/**
+ * Undo/redo history of fixed-width snapshots stored back to back in one
+ * long[] ring. The ring doubles when full until it holds the given limit of
+ * snapshots, after which the oldest are overwritten. The cursor marks the
+ * current snapshot; snapshots after it can be redone until the next push.
+ */
+final class History2048 {
+
+    private final int width;
+    private final int limit;
+
+    private long[] ring;
+    private int head;
+    private int size;
+    private int cursor = -1;
+
+    /**
+     * @param width longs per snapshot
+     * @param limit most snapshots kept, Integer.MAX_VALUE for as many as fit
+     */
+    History2048(int width, int limit) {
+        this.width = width;
+        this.limit = Math.max(1, Math.min(limit, (Integer.MAX_VALUE - 8) / width));
+        this.ring = new long[width * Math.min(this.limit, 64)];
+    }
+
+    void clear() {
+        head = 0;
+        size = 0;
+        cursor = -1;
+    }
+
+    long[] buffer() {
+        return ring;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int cursor() {
+        return cursor;
+    }
+
+    boolean canUndo() {
+        return cursor > 0;
+    }
+
+    boolean canRedo() {
+        return cursor < size - 1;
+    }
+
+    /**
+     * Appends a snapshot after the cursor and returns its offset in buffer()
+     * for the caller to fill in.
+     */
+    int push() {
+        size = cursor + 1;
+        int capacity = ring.length / width;
+        if (size == capacity) {
+            if (capacity < limit) {
+                long[] grown = new long[width * (int) Math.min(limit, 2L * capacity)];
+                int first = capacity - head;
+                System.arraycopy(ring, head * width, grown, 0, first * width);
+                System.arraycopy(ring, 0, grown, first * width, head * width);
+                ring = grown;
+                head = 0;
+            } else {
+                head = (head + 1) % capacity;
+                size--;
+            }
+        }
+        cursor = size++;
+        return offset(cursor);
+    }
+
+    int undo() {
+        return seek(cursor - 1);
+    }
+
+    int redo() {
+        return seek(cursor + 1);
+    }
+
+    /**
+     * Moves the cursor to the given snapshot and returns its offset.
+     */
+    int seek(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("snapshot " + index + " of " + size);
+        cursor = index;
+        return offset(index);
+    }
+
+    private int offset(int index) {
+        return (head + index) % (ring.length / width) * width;
+    }
+}
+
+/**
+ * SplitMix64 generator: a 64-bit counter stepped by a fixed odd gamma and
+ * passed through a mixing function. The whole state is one long, so a stream
+ * can be saved, restored and replayed exactly, and new independent streams
+ * are split off by seeding them from the output of an existing one.
+ */
+final class SplitMix64 {
+
+    private static final long GAMMA = 0x9E3779B97F4A7C15L;
+
+    private long state;
+
+    SplitMix64(long seed) {
+        state = seed;
+    }
+
+    long getState() {
+        return state;
+    }
+
+    void setState(long state) {
+        this.state = state;
+    }
+
+    long nextLong() {
+        long z = (state += GAMMA);
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Uniform int in [0, bound) by multiply-shift, with a bias below
+     * bound / 2^32 that is irrelevant for board-sized bounds.
+     */
+    int nextInt(int bound) {
+        return (int) (((nextLong() >>> 32) * bound) >>> 32);
+    }
+}
+
+/**
+ * Headless self-play runner. Plays a number of games on Board2048 across all
+ * cores, each game with its own SplitMix64 stream split off a root generator
+ * seeded from the base seed, so any single game can be replayed on its own.
+ * Workers share nothing but a game counter and write their results into
+ * per-game slots.
+ *
+ * Usage: java Simulation2048 [games] [random|greedy|expectimax|ntuple] [seed] [threads] [weights]
+ * where weights is the network file the ntuple policy plays from, by default
+ * the one NTuple2048 trains (ntuple2048.weights).
+ */
+final class Simulation2048 {
+
+    /**
+     * Chooses a direction for the board, or -1 to end the game.
+     */
+    interface Policy {
+        int move(long board, SplitMix64 rand);
+    }
+
+    static final Policy RANDOM = (board, rand) -> {
+        int start = rand.nextInt(4);
+        for (int i = 0; i < 4; i++) {
+            int d = (start + i) & 3;
+            if (Board2048.move(board, d) != board)
+                return d;
         }
         return -1;
+    };
+
+    static final Policy GREEDY = (board, rand) -> {
+        int best = -1;
+        int bestScore = -1;
+        for (int d = Board2048.UP; d <= Board2048.RIGHT; d++) {
+            if (Board2048.move(board, d) != board) {
+                int points = Board2048.score(board, d);
+                if (points > bestScore) {
+                    best = d;
+                    bestScore = points;
+                }
+            }
+        }
+        return best;
+    };
+
+    private final Policy policy;
+    private final int games;
+    private final int threads;
+
+    private final long[] seeds;
+    private final int[] scores;
+    private final int[] moves;
+    private final byte[] maxRanks;
+
+    Simulation2048(Policy policy, int games, long seed, int threads) {
+        this.policy = policy;
+        this.games = games;
+        this.threads = threads;
+        this.seeds = new long[games];
+        this.scores = new int[games];
+        this.moves = new int[games];
+        this.maxRanks = new byte[games];
+
+        SplitMix64 root = new SplitMix64(seed);
+        for (int game = 0; game < games; game++)
+            seeds[game] = root.nextLong();
+    }
+
+    /**
+     * Plays all games and returns the elapsed wall time in nanoseconds.
+     */
+    long run() throws InterruptedException {
+        AtomicInteger next = new AtomicInteger();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                for (int game; (game = next.getAndIncrement()) < games;)
+                    play(game);
+            }, "Simulation2048-" + t);
+        }
+
+        long start = System.nanoTime();
+        for (Thread worker : workers)
+            worker.start();
+        for (Thread worker : workers)
+            worker.join();
+        return System.nanoTime() - start;
+    }
+
+    private void play(int game) {
+        SplitMix64 rand = new SplitMix64(seeds[game]);
+        long board = Board2048.addRandomTile(Board2048.addRandomTile(0, rand), rand);
+        int score = 0;
+        int count = 0;
+
+        while (Board2048.canMove(board)) {
+            int d = policy.move(board, rand);
+            if (d < 0)
+                break;
+            long next = Board2048.move(board, d);
+            if (next == board)
+                break;
+
+            score += Board2048.score(board, d);
+            board = Board2048.addRandomTile(next, rand);
+            count++;
+        }
+
+        scores[game] = score;
+        moves[game] = count;
+        maxRanks[game] = (byte) Board2048.maxRank(board);
+    }
+
+    void report(long nanos) {
+        double seconds = nanos / 1e9;
+        long totalMoves = 0;
+        for (int m : moves)
+            totalMoves += m;
+
+        System.out.printf("%d games, %d moves in %.3f s on %d threads%n", games, totalMoves, seconds, threads);
+        System.out.printf("%.1f games/s, %.0f moves/s%n", games / seconds, totalMoves / seconds);
+
+        int[] sorted = scores.clone();
+        Arrays.sort(sorted);
+        long sum = 0;
+        for (int s : sorted)
+            sum += s;
+        System.out.printf("score: min %d, p10 %d, median %d, p90 %d, max %d, mean %.1f%n",
+                sorted[0], percentile(sorted, 10), percentile(sorted, 50), percentile(sorted, 90),
+                sorted[sorted.length - 1], (double) sum / games);
+
+        int[] histogram = new int[16];
+        for (byte rank : maxRanks)
+            histogram[rank]++;
+        System.out.println("max tile:");
+        for (int rank = 0; rank < histogram.length; rank++)
+            if (histogram[rank] > 0)
+                System.out.printf("%8d  %d (%.2f%%)%n", 1 << rank, histogram[rank], 100.0 * histogram[rank] / games);
+    }
+
+    private static int percentile(int[] sorted, int p) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * p / 100)];
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        int games = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        String name = args.length > 1 ? args[1] : "random";
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        String weights = args.length > 4 ? args[4] : NTuple2048.DEFAULT_FILE;
+
+        Policy policy;
+        if (name.equals("greedy")) {
+            policy = GREEDY;
+        } else if (name.equals("expectimax")) {
+            Expectimax2048 solver = new Expectimax2048(3, 0);
+            policy = (board, rand) -> solver.bestMove(board);
+        } else if (name.equals("ntuple")) {
+            NTuple2048 network = NTuple2048.open(weights, true);
+            policy = (board, rand) -> network.bestMove(board);
+        } else {
+            policy = RANDOM;
+        }
+
+        Simulation2048 simulation = new Simulation2048(policy, games, seed, threads);
+        simulation.report(simulation.run());
     }
-}
\ No newline at end of file
+}
+
+/**
+ * N-tuple network valuing 4x4 afterstates, learned by temporal-difference
+ * self-play. Four 6-cell tuples are read from each of the eight rotations and
+ * reflections of the board, and each tuple indexes a table of 16^6 floats,
+ * 256 MB in all. The tables live in a memory-mapped file rather than on the
+ * heap: players map it read-only and share the page cache, and the trainer
+ * updates it in place from all cores without locks. Two threads writing the
+ * same weight at once may lose one update, which TD learning shrugs off.
+ *
+ * Usage: java NTuple2048 [games] [file] [threads] [alpha]
+ */
+final class NTuple2048 {
+
+    static final String DEFAULT_FILE = "ntuple2048.weights";
+
+    private static final int TUPLES = 4;
+    private static final int TABLE_SIZE = 1 << 24;
+    private static final int FEATURES = TUPLES * 8;
+
+    private final MappedByteBuffer[] mappings = new MappedByteBuffer[TUPLES];
+    private final FloatBuffer[] tables = new FloatBuffer[TUPLES];
+
+    private NTuple2048(FileChannel channel, boolean readOnly) throws IOException {
+        FileChannel.MapMode mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+        long bytes = (long) TABLE_SIZE * Float.BYTES;
+        for (int t = 0; t < TUPLES; t++) {
+            mappings[t] = channel.map(mode, t * bytes, bytes);
+            tables[t] = mappings[t].order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+    }
+
+    /**
+     * Maps the weight file, creating it zero-filled when opened for writing.
+     */
+    static NTuple2048 open(String file, boolean readOnly) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, readOnly ? "r" : "rw")) {
+            long bytes = (long) TUPLES * TABLE_SIZE * Float.BYTES;
+            if (raf.length() < bytes) {
+                if (readOnly)
+                    throw new IOException(file + " holds no trained network");
+                raf.setLength(bytes);
+            }
+            return new NTuple2048(raf.getChannel(), readOnly);
+        }
+    }
+
+    void flush() {
+        for (MappedByteBuffer mapping : mappings)
+            mapping.force();
+    }
+
+    float value(long board) {
+        long t = Board2048.transpose(board);
+        long m = mirror(board);
+        long mt = mirror(t);
+        long tm = Board2048.transpose(m);
+        long tmt = Board2048.transpose(mt);
+        return sum(board) + sum(m) + sum(t) + sum(mt)
+                + sum(tm) + sum(mirror(tm)) + sum(tmt) + sum(mirror(tmt));
+    }
+
+    /**
+     * Adds delta, spread evenly over every feature, to the board's value.
+     */
+    void update(long board, float delta) {
+        float step = delta / FEATURES;
+        long t = Board2048.transpose(board);
+        long m = mirror(board);
+        long mt = mirror(t);
+        long tm = Board2048.transpose(m);
+        long tmt = Board2048.transpose(mt);
+        add(board, step);
+        add(m, step);
+        add(t, step);
+        add(mt, step);
+        add(tm, step);
+        add(mirror(tm), step);
+        add(tmt, step);
+        add(mirror(tmt), step);
+    }
+
+    /**
+     * Returns the move maximising reward plus afterstate value, or -1 if no
+     * move is possible.
+     */
+    int bestMove(long board) {
+        int best = -1;
+        float bestValue = 0;
+        for (int d = Board2048.UP; d <= Board2048.RIGHT; d++) {
+            long after = Board2048.move(board, d);
+            if (after == board)
+                continue;
+            float v = Board2048.score(board, d) + value(after);
+            if (best < 0 || v > bestValue) {
+                best = d;
+                bestValue = v;
+            }
+        }
+        return best;
+    }
+
+    private float sum(long b) {
+        return tables[0].get((int) (b & 0xFFFFFF))
+                + tables[1].get((int) (b >>> 16) & 0xFFFFFF)
+                + tables[2].get((int) (b & 0xFFF | (b >>> 4) & 0xFFF000))
+                + tables[3].get((int) ((b >>> 16) & 0xFFF | (b >>> 20) & 0xFFF000));
+    }
+
+    private void add(long b, float step) {
+        add(tables[0], (int) (b & 0xFFFFFF), step);
+        add(tables[1], (int) (b >>> 16) & 0xFFFFFF, step);
+        add(tables[2], (int) (b & 0xFFF | (b >>> 4) & 0xFFF000), step);
+        add(tables[3], (int) ((b >>> 16) & 0xFFF | (b >>> 20) & 0xFFF000), step);
+    }
+
+    private static void add(FloatBuffer table, int index, float step) {
+        table.put(index, table.get(index) + step);
+    }
+
+    /**
+     * Reverses the order of the cells in every row.
+     */
+    private static long mirror(long b) {
+        return ((b & 0x000F000F000F000FL) << 12) | ((b & 0x00F000F000F000F0L) << 4)
+                | ((b & 0x0F000F000F000F00L) >>> 4) | ((b & 0xF000F000F000F000L) >>> 12);
+    }
+
+    /**
+     * Plays one game greedily on the current weights, applying the TD(0)
+     * update to each afterstate from the reward and value of the next one.
+     * Returns the game's score shifted left by a byte, with the highest rank
+     * reached in the low byte.
+     */
+    private long train(SplitMix64 rand, float alpha) {
+        long board = Board2048.addRandomTile(Board2048.addRandomTile(0, rand), rand);
+        long previous = 0;
+        float previousValue = 0;
+        boolean first = true;
+        int score = 0;
+
+        while (true) {
+            int best = -1;
+            long bestAfter = 0;
+            int bestReward = 0;
+            float bestValue = 0;
+            for (int d = Board2048.UP; d <= Board2048.RIGHT; d++) {
+                long after = Board2048.move(board, d);
+                if (after == board)
+                    continue;
+                int reward = Board2048.score(board, d);
+                float v = value(after);
+                if (best < 0 || reward + v > bestReward + bestValue) {
+                    best = d;
+                    bestAfter = after;
+                    bestReward = reward;
+                    bestValue = v;
+                }
+            }
+
+            if (!first)
+                update(previous, alpha * ((best < 0 ? 0 : bestReward + bestValue) - previousValue));
+            if (best < 0)
+                break;
+
+            previous = bestAfter;
+            previousValue = bestValue;
+            first = false;
+            score += bestReward;
+            board = Board2048.addRandomTile(bestAfter, rand);
+        }
+        return (long) score << 8 | Board2048.maxRank(board);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int games = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        String file = args.length > 1 ? args[1] : DEFAULT_FILE;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        float alpha = args.length > 3 ? Float.parseFloat(args[3]) : 0.1f;
+
+        NTuple2048 network = open(file, false);
+        AtomicInteger next = new AtomicInteger();
+        LongAdder played = new LongAdder();
+        LongAdder scores = new LongAdder();
+        LongAdder reached = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        SplitMix64 root = new SplitMix64(System.nanoTime());
+
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            SplitMix64 rand = new SplitMix64(root.nextLong());
+            new Thread(() -> {
+                while (next.getAndIncrement() < games) {
+                    long result = network.train(rand, alpha);
+                    scores.add(result >>> 8);
+                    if ((result & 0xFF) >= 11)
+                        reached.increment();
+                    played.increment();
+                }
+                done.countDown();
+            }, "NTuple2048-" + t).start();
+        }
+
+        long last = start;
+        boolean finished = false;
+        while (!finished) {
+            finished = done.await(5, TimeUnit.SECONDS);
+            long now = System.nanoTime();
+            long window = played.sumThenReset();
+            if (window > 0) {
+                System.out.printf("%d games, %.0f games/s, mean score %.0f, 2048 reached %.1f%%%n",
+                        Math.min(next.get(), games), window / ((now - last) / 1e9),
+                        (double) scores.sumThenReset() / window, 100.0 * reached.sumThenReset() / window);
+            }
+            last = now;
+        }
+
+        network.flush();
+        System.out.printf("trained %d games in %.1f s into %s%n", games, (System.nanoTime() - start) / 1e9, file);
+    }
+}
+
+/**
+ * Expectimax autoplayer for Board2048. Max nodes try the four moves, chance
+ * nodes place a 2 (90%) or a 4 (10%) on every empty cell, and leaves are
+ * scored by a row heuristic looked up for every row and column. The chance
+ * nodes below each root move are searched in parallel on the common fork/join
+ * pool. Evaluated chance nodes go into a transposition table keyed by the
+ * packed board, shared by all workers and kept from one move to the next.
+ */
+final class Expectimax2048 {
+
+    static final String[] MOVE_NAMES = { "Up", "Down", "Left", "Right" };
+
+    private static final float PROBABILITY_CUTOFF = 0.0001f;
+
+    private static final float LOST_PENALTY = 200000f;
+    private static final float MONOTONICITY_POWER = 4f;
+    private static final float MONOTONICITY_WEIGHT = 47f;
+    private static final float SUM_POWER = 3.5f;
+    private static final float SUM_WEIGHT = 11f;
+    private static final float MERGES_WEIGHT = 700f;
+    private static final float EMPTY_WEIGHT = 270f;
+
+    private static final float[] ROW_HEURISTIC = new float[1 << 16];
+
+    static {
+        int[] line = new int[Board2048.SIDE];
+        for (int row = 0; row < ROW_HEURISTIC.length; row++) {
+            for (int i = 0; i < line.length; i++)
+                line[i] = (row >>> (4 * i)) & 0xF;
+
+            float sum = 0;
+            int empty = 0;
+            int merges = 0;
+            int prev = 0;
+            int counter = 0;
+            for (int rank : line) {
+                sum += Math.pow(rank, SUM_POWER);
+                if (rank == 0) {
+                    empty++;
+                } else {
+                    if (prev == rank) {
+                        counter++;
+                    } else if (counter > 0) {
+                        merges += 1 + counter;
+                        counter = 0;
+                    }
+                    prev = rank;
+                }
+            }
+            if (counter > 0)
+                merges += 1 + counter;
+
+            float left = 0;
+            float right = 0;
+            for (int i = 1; i < line.length; i++) {
+                float a = (float) Math.pow(line[i - 1], MONOTONICITY_POWER);
+                float b = (float) Math.pow(line[i], MONOTONICITY_POWER);
+                if (line[i - 1] > line[i])
+                    left += a - b;
+                else
+                    right += b - a;
+            }
+
+            ROW_HEURISTIC[row] = LOST_PENALTY + EMPTY_WEIGHT * empty + MERGES_WEIGHT * merges
+                    - MONOTONICITY_WEIGHT * Math.min(left, right) - SUM_WEIGHT * sum;
+        }
+    }
+
+    private final int maxDepth;
+    private final long budgetNanos;
+    private final TranspositionTable table = new TranspositionTable(20);
+
+    /**
+     * @param maxDepth number of move plies searched, including the root move
+     * @param budgetMillis time allowed per move, or 0 for none; depths are
+     *                     deepened one at a time and the deepest one finished
+     *                     in time is used
+     */
+    Expectimax2048(int maxDepth, long budgetMillis) {
+        this.maxDepth = maxDepth;
+        this.budgetNanos = budgetMillis > 0 ? budgetMillis * 1000000L : Long.MAX_VALUE / 2;
+    }
+
+    /**
+     * Returns the best direction for the board, or -1 if no move is possible.
+     */
+    int bestMove(long board) {
+        long deadline = System.nanoTime() + budgetNanos;
+        int best = -1;
+
+        for (int depth = 1; depth <= maxDepth; depth++) {
+            if (depth > 1 && System.nanoTime() - deadline > 0)
+                break;
+
+            int move = searchRoot(board, depth, deadline);
+            // a depth cut short by the deadline is discarded in favour of the last complete one
+            if (best >= 0 && System.nanoTime() - deadline > 0)
+                break;
+            best = move;
+            if (best < 0)
+                break;
+        }
+        return best;
+    }
+
+    private int searchRoot(long board, int depth, long deadline) {
+        RootTask[] roots = new RootTask[4];
+        for (int d = Board2048.UP; d <= Board2048.RIGHT; d++) {
+            long next = Board2048.move(board, d);
+            if (next != board)
+                roots[d] = new RootTask(next, depth - 1, deadline);
+        }
+
+        ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                for (RootTask root : roots)
+                    if (root != null)
+                        root.fork();
+                for (RootTask root : roots)
+                    if (root != null)
+                        root.join();
+            }
+        });
+
+        int best = -1;
+        for (int d = 0; d < roots.length; d++)
+            if (roots[d] != null && (best < 0 || roots[d].value > roots[best].value))
+                best = d;
+        return best;
+    }
+
+    static float evaluate(long board) {
+        long t = Board2048.transpose(board);
+        float value = 0;
+        for (int r = 0; r < Board2048.SIDE; r++) {
+            value += ROW_HEURISTIC[(int) (board >>> (16 * r)) & 0xFFFF];
+            value += ROW_HEURISTIC[(int) (t >>> (16 * r)) & 0xFFFF];
+        }
+        return value;
+    }
+
+    private float maxNode(long board, int depth, float probability, long deadline) {
+        float best = 0;
+        for (int d = Board2048.UP; d <= Board2048.RIGHT; d++) {
+            long next = Board2048.move(board, d);
+            if (next != board)
+                best = Math.max(best, chanceNode(next, depth - 1, probability, deadline));
+        }
+        return best;
+    }
+
+    private float chanceNode(long board, int depth, float probability, long deadline) {
+        if (depth <= 0 || probability < PROBABILITY_CUTOFF || System.nanoTime() - deadline > 0)
+            return evaluate(board);
+
+        long cached = table.get(board, depth);
+        if (cached != 0)
+            return TranspositionTable.value(cached);
+
+        int empty = 0;
+        for (int i = 0; i < 16; i++)
+            if (((board >>> (4 * i)) & 0xF) == 0)
+                empty++;
+
+        float sum = 0;
+        float p = probability / empty;
+        for (int i = 0; i < 16; i++) {
+            if (((board >>> (4 * i)) & 0xF) == 0) {
+                sum += 0.9f * maxNode(board | (1L << (4 * i)), depth, 0.9f * p, deadline);
+                sum += 0.1f * maxNode(board | (2L << (4 * i)), depth, 0.1f * p, deadline);
+            }
+        }
+        float value = sum / empty;
+
+        if (System.nanoTime() - deadline <= 0)
+            table.put(board, depth, value);
+        return value;
+    }
+
+    /**
+     * Expected value of one root move's afterstate. Each possible spawn is
+     * searched as its own subtask so that all cores stay busy even when only
+     * one or two moves are legal.
+     */
+    private final class RootTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long board;
+        private final int depth;
+        private final long deadline;
+        private float value;
+
+        RootTask(long board, int depth, long deadline) {
+            this.board = board;
+            this.depth = depth;
+            this.deadline = deadline;
+        }
+
+        @Override
+        protected void compute() {
+            if (depth <= 0) {
+                value = evaluate(board);
+                return;
+            }
+
+            SpawnTask[] spawns = new SpawnTask[32];
+            int n = 0;
+            for (int i = 0; i < 16; i++) {
+                if (((board >>> (4 * i)) & 0xF) == 0) {
+                    spawns[n++] = new SpawnTask(board | (1L << (4 * i)), 0.9f);
+                    spawns[n++] = new SpawnTask(board | (2L << (4 * i)), 0.1f);
+                }
+            }
+
+            float p = 2f / n;
+            for (int i = 0; i < n; i++) {
+                spawns[i].probability *= p;
+                spawns[i].fork();
+            }
+
+            float sum = 0;
+            for (int i = n - 1; i >= 0; i--) {
+                spawns[i].join();
+                sum += spawns[i].weight * spawns[i].value;
+            }
+            value = sum * p;
+        }
+
+        private final class SpawnTask extends RecursiveAction {
+
+            private static final long serialVersionUID = 1L;
+
+            private final long board;
+            private final float weight;
+            private float probability;
+            private float value;
+
+            SpawnTask(long board, float weight) {
+                this.board = board;
+                this.weight = weight;
+                this.probability = weight;
+            }
+
+            @Override
+            protected void compute() {
+                value = maxNode(board, depth, probability, deadline);
+            }
+        }
+    }
+
+    /**
+     * Fixed-size, always-replace hash table from packed boards to searched
+     * values, safe to share between threads without locking. Each slot stores
+     * the key XORed with its data, so a slot torn by two racing writers simply
+     * fails the key check instead of returning a wrong value.
+     */
+    static final class TranspositionTable {
+
+        private final long[] keys;
+        private final long[] data;
+        private final int shift;
+
+        TranspositionTable(int bits) {
+            keys = new long[1 << bits];
+            data = new long[1 << bits];
+            shift = 64 - bits;
+        }
+
+        /**
+         * Returns the entry for the board if it was searched at least as deep
+         * as requested, or 0.
+         */
+        long get(long board, int depth) {
+            int i = index(board);
+            long d = data[i];
+            if ((keys[i] ^ d) == board && (int) (d & 0xFF) >= depth)
+                return d;
+            return 0;
+        }
+
+        void put(long board, int depth, float value) {
+            int i = index(board);
+            long d = ((long) Float.floatToRawIntBits(value) << 32) | depth;
+            data[i] = d;
+            keys[i] = board ^ d;
+        }
+
+        static float value(long entry) {
+            return Float.intBitsToFloat((int) (entry >>> 32));
+        }
+
+        private int index(long board) {
+            return (int) ((board * 0x9E3779B97F4A7C15L) >>> shift);
+        }
+    }
+}
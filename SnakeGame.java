@@ -1,5 +1,4 @@
 import java.awt.BorderLayout;
-import java.awt.Point;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.Color;
@@ -7,11 +6,23 @@ import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Transparency;
 import java.awt.BasicStroke;
-import java.util.LinkedList;
+import java.awt.Stroke;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
+import javax.swing.Timer;
 
 /**
  * @author Adarsh Varshney
@@ -21,27 +32,54 @@ public class SnakeGame extends JFrame {
 
 	private static final long serialVersionUID = 12345L;
 	private static final long FRAME_TIME = 1000L / 50L;
-	private static final int MIN_SNAKE_LENGTH = 5;
+	// repaint period in milliseconds, just under 60 fps
+	private static final int RENDER_DELAY = 17;
+	// logic speed multipliers the T key steps through, where 0 means as fast as possible
+	private static final int[] SPEEDS = { 1, 4, 16, 0 };
+	static final int MIN_SNAKE_LENGTH = 5;
 	private static final int MAX_DIRECTIONS = 3;
+	private static final int MIN_SNAKE_CAPACITY = 64;
+	private static final int INPUT_CAPACITY = 64;
+	private static final int INPUT_PAUSE = 4;
+	private static final int INPUT_START = 5;
+	private static final int INPUT_AUTOPILOT = 6;
+	private static final int INPUT_SPEED = 7;
+	private static final Direction[] DIRECTIONS = Direction.values();
 	private BoardPanel board;
 	private SidePanel side;
 	private Random random;
 	private Clock logicTimer;
-	private boolean isNewGame;
-	private boolean isGameOver;
-	private boolean isPaused;
-	private LinkedList<Point> snake;
-	private LinkedList<Direction> directions;
+	private final InputQueue input = new InputQueue(INPUT_CAPACITY);
+	// written by the game loop only, and read by the painting thread
+	private volatile boolean isNewGame;
+	private volatile boolean isGameOver;
+	private volatile boolean isPaused;
+	private volatile boolean isAutopilot;
+	private volatile int speed;
+	private volatile long ticks;
+	private long renderedTicks = -1;
+	private Autopilot autopilot;
+	// ring of cell indices (y * cols + x) from the head at snakeHead to the tail, grown on demand
+	private int[] snake;
+	private int snakeHead;
+	private int snakeLength;
+	// the head published for the paint thread, which must not read the ring while it grows
+	private volatile int headCell = -1;
+	private Direction[] directions;
+	private int directionHead;
+	private int directionCount;
 	private int score;
 	private int fruitsEaten;
 	private int nextFruitScore;
+	private int fruitCell = -1;
 
-	private SnakeGame() {
+	private SnakeGame(int cols, int rows, int speed) {
 		super("Adarsh's Snake Game");
 		setLayout(new BorderLayout());
 		setDefaultCloseOperation(EXIT_ON_CLOSE);
 		setResizable(false);
-		this.board = new BoardPanel(this);
+		this.speed = speed;
+		this.board = new BoardPanel(this, cols, rows);
 		this.side = new SidePanel(this);
 
 		add(board, BorderLayout.CENTER);
@@ -49,69 +87,46 @@ public class SnakeGame extends JFrame {
 
 		addKeyListener(new KeyAdapter() {
 
+			// runs on the event dispatch thread, so it only queues the key for the game loop
 			@Override
 			public void keyPressed(KeyEvent e) {
+				long now = System.nanoTime();
 				switch (e.getKeyCode()) {
 
 					case KeyEvent.VK_W:
 					case KeyEvent.VK_UP:
-						if (!isPaused && !isGameOver) {
-							if (directions.size() < MAX_DIRECTIONS) {
-								Direction last = directions.peekLast();
-								if (last != Direction.South && last != Direction.North) {
-									directions.addLast(Direction.North);
-								}
-							}
-						}
+						input.offer(Direction.North.ordinal(), now);
 						break;
 
 					case KeyEvent.VK_S:
 					case KeyEvent.VK_DOWN:
-						if (!isPaused && !isGameOver) {
-							if (directions.size() < MAX_DIRECTIONS) {
-								Direction last = directions.peekLast();
-								if (last != Direction.North && last != Direction.South) {
-									directions.addLast(Direction.South);
-								}
-							}
-						}
+						input.offer(Direction.South.ordinal(), now);
 						break;
 
 					case KeyEvent.VK_A:
 					case KeyEvent.VK_LEFT:
-						if (!isPaused && !isGameOver) {
-							if (directions.size() < MAX_DIRECTIONS) {
-								Direction last = directions.peekLast();
-								if (last != Direction.East && last != Direction.West) {
-									directions.addLast(Direction.West);
-								}
-							}
-						}
+						input.offer(Direction.West.ordinal(), now);
 						break;
 
 					case KeyEvent.VK_D:
 					case KeyEvent.VK_RIGHT:
-						if (!isPaused && !isGameOver) {
-							if (directions.size() < MAX_DIRECTIONS) {
-								Direction last = directions.peekLast();
-								if (last != Direction.West && last != Direction.East) {
-									directions.addLast(Direction.East);
-								}
-							}
-						}
+						input.offer(Direction.East.ordinal(), now);
 						break;
 
 					case KeyEvent.VK_P:
-						if (!isGameOver) {
-							isPaused = !isPaused;
-							logicTimer.setPaused(isPaused);
-						}
+						input.offer(INPUT_PAUSE, now);
+						break;
+
+					case KeyEvent.VK_SPACE:
+						input.offer(INPUT_AUTOPILOT, now);
+						break;
+
+					case KeyEvent.VK_T:
+						input.offer(INPUT_SPEED, now);
 						break;
 
 					case KeyEvent.VK_ENTER:
-						if (isNewGame || isGameOver) {
-							resetGame();
-						}
+						input.offer(INPUT_START, now);
 						break;
 				}
 			}
@@ -126,104 +141,185 @@ public class SnakeGame extends JFrame {
 	private void startGame() {
 
 		this.random = new Random();
-		this.snake = new LinkedList<>();
-		this.directions = new LinkedList<>();
+		this.snake = new int[Math.min(MIN_SNAKE_CAPACITY, board.getCols() * board.getRows())];
+		this.directions = new Direction[MAX_DIRECTIONS];
 		this.logicTimer = new Clock(10.0f);
 		this.isNewGame = true;
 
 		logicTimer.setPaused(true);
+		updateRate();
 
-		while (true) {
-			long start = System.nanoTime();
-
-			logicTimer.update();
+		// the display samples the latest state on its own timer, skipping frames when behind
+		Timer frames = new Timer(RENDER_DELAY, e -> render());
+		frames.setCoalesce(true);
+		frames.start();
 
-			if (logicTimer.hasElapsedCycle()) {
+		while (true) {
+			handleInput(System.nanoTime());
+			if (logicTimer.isPaused()) {
+				sleep(FRAME_TIME);
+			} else if (speed == 0) {
 				updateGame();
+			} else {
+				logicTimer.update();
+				while (logicTimer.hasElapsedCycle() && !logicTimer.isPaused()) {
+					updateGame();
+					handleInput(System.nanoTime());
+				}
+				sleep(Math.max(1L, Math.min(FRAME_TIME, logicTimer.millisUntilCycle())));
 			}
+		}
+	}
 
-			board.repaint();
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void render() {
+		board.flush();
+		long t = ticks;
+		if (t != renderedTicks) {
+			renderedTicks = t;
 			side.repaint();
+		}
+	}
+
+	private void updateRate() {
+		if (speed > 0) {
+			logicTimer.setCyclesPerSecond((10.0f + fruitsEaten / 9) * speed);
+		}
+	}
+
+	private void handleInput(long deadline) {
+		int event;
+		while ((event = input.poll(deadline)) >= 0) {
+			switch (event) {
+				case INPUT_PAUSE:
+					if (!isGameOver) {
+						isPaused = !isPaused;
+						logicTimer.setPaused(isPaused);
+						board.repaint();
+						side.repaint();
+					}
+					break;
 
-			long delta = (System.nanoTime() - start) / 1000000L;
-			if (delta < FRAME_TIME) {
-				try {
-					Thread.sleep(FRAME_TIME - delta);
-				} catch (Exception e) {
-					e.printStackTrace();
+				case INPUT_AUTOPILOT:
+					isAutopilot = !isAutopilot;
+					if (isAutopilot && autopilot != null) {
+						autopilot.reset();
+					}
+					break;
+
+				case INPUT_SPEED: {
+					int next = 0;
+					while (SPEEDS[next] != speed && next < SPEEDS.length - 1) {
+						next++;
+					}
+					speed = SPEEDS[(next + 1) % SPEEDS.length];
+					updateRate();
+					logicTimer.skip();
+					side.repaint();
+					break;
 				}
+
+				case INPUT_START:
+					if (isNewGame || isGameOver) {
+						resetGame();
+						side.repaint();
+					}
+					break;
+
+				default:
+					turn(DIRECTIONS[event]);
+					break;
+			}
+		}
+	}
+
+	private void turn(Direction direction) {
+		if (!isPaused && !isGameOver && directionCount < MAX_DIRECTIONS) {
+			Direction last = lastDirection();
+			if (last == null || last.ordinal() % 2 != direction.ordinal() % 2) {
+				addDirection(direction);
 			}
 		}
 	}
 
 	private void updateGame() {
-		TileType collision = updateSnake();
+		ticks++;
+		if (isAutopilot) {
+			if (autopilot == null) {
+				autopilot = new Autopilot(board.getCols(), board.getRows());
+			}
+			directionHead = 0;
+			directionCount = 1;
+			directions[0] = autopilot.next(snake, snakeHead, snakeLength, SnakeRules.growth(snakeLength),
+					fruitCell);
+		}
 
-		if (collision == TileType.Fruit) {
+		byte collision = updateSnake();
+
+		if (collision == SnakeRules.FRUIT) {
 			fruitsEaten++;
 			score += nextFruitScore;
-			logicTimer.setCyclesPerSecond(10.0f + fruitsEaten / 9);
+			updateRate();
 			spawnFruit();
-		} else if (collision == TileType.SnakeBody) {
+		} else if (SnakeRules.isCrash(collision)) {
 			isGameOver = true;
 			logicTimer.setPaused(true);
-		} else if (nextFruitScore > 10) {
-			nextFruitScore--;
+			board.repaint();
+		} else {
+			nextFruitScore = SnakeRules.decay(nextFruitScore);
 		}
 	}
 
-	private TileType updateSnake() {
-
-		Direction direction = directions.peekFirst();
-
-		Point head = new Point(snake.peekFirst());
-		switch (direction) {
-			case North:
-				head.y--;
-				break;
-
-			case South:
-				head.y++;
-				break;
-
-			case West:
-				head.x--;
-				break;
-
-			case East:
-				head.x++;
-				break;
-		}
-
-		if (head.x < 0) {
-			head.x = BoardPanel.COL_COUNT - 1;
-		} else if (head.x >= BoardPanel.COL_COUNT) {
-			head.x = 0;
-		} else if (head.y < 0) {
-			head.y = BoardPanel.ROW_COUNT - 1;
-		} else if (head.y >= BoardPanel.ROW_COUNT) {
-			head.y = 0;
-		}
-
-		TileType old = board.getTile(head.x, head.y);
-		if (old != TileType.Fruit && snake.size() > MIN_SNAKE_LENGTH) {
-			Point tail = snake.removeLast();
+	/**
+	 * Moves the snake one cell under SnakeRules and returns the tile code the
+	 * head ran into.
+	 */
+	private byte updateSnake() {
+		int head = snake[snakeHead];
+		int next = SnakeRules.step(head, directions[directionHead].ordinal(), board.getCols(), board.getRows());
+		byte old = board.getCode(next);
+		if (SnakeRules.tailLeaves(old, snakeLength)) {
+			int tail = snake[(snakeHead + snakeLength - 1) % snake.length];
+			snakeLength--;
 			board.setTile(tail, null);
-			old = board.getTile(head.x, head.y);
+			old = board.getCode(next);
 		}
 
-		if (old != TileType.SnakeBody) {
-			board.setTile(snake.peekFirst(), TileType.SnakeBody);
-			snake.push(head);
-			board.setTile(head, TileType.SnakeHead);
-			if (directions.size() > 1) {
-				directions.poll();
+		if (!SnakeRules.isCrash(old)) {
+			if (snakeLength == snake.length) {
+				growSnake();
 			}
+			board.setTile(head, TileType.SnakeBody);
+			snakeHead = (snakeHead == 0 ? snake.length : snakeHead) - 1;
+			snake[snakeHead] = next;
+			headCell = next;
+			snakeLength++;
+			if (directionCount > 1) {
+				directionHead = (directionHead + 1) % MAX_DIRECTIONS;
+				directionCount--;
+			}
+			board.setTile(next, TileType.SnakeHead);
 		}
 
 		return old;
 	}
 
+	private void growSnake() {
+		int[] grown = new int[(int) Math.min(2L * snake.length, (long) board.getCols() * board.getRows())];
+		for (int i = 0; i < snakeLength; i++) {
+			grown[i] = snake[(snakeHead + i) % snake.length];
+		}
+		snake = grown;
+		snakeHead = 0;
+	}
+
 	private void resetGame() {
 		this.score = 0;
 		this.fruitsEaten = 0;
@@ -231,22 +327,40 @@ public class SnakeGame extends JFrame {
 		this.isNewGame = false;
 		this.isGameOver = false;
 
-		Point head = new Point(BoardPanel.COL_COUNT / 2, BoardPanel.ROW_COUNT / 2);
+		int start = (board.getRows() / 2) * board.getCols() + board.getCols() / 2;
 
-		snake.clear();
-		snake.add(head);
+		snakeHead = 0;
+		snakeLength = 1;
+		snake[0] = start;
+		headCell = start;
 
 		board.clearBoard();
-		board.setTile(head, TileType.SnakeHead);
+		board.setTile(start, TileType.SnakeHead);
 
-		directions.clear();
-		directions.add(Direction.North);
+		directionHead = 0;
+		directionCount = 1;
+		directions[0] = Direction.North;
 
 		logicTimer.reset();
+		if (autopilot != null) {
+			autopilot.reset();
+		}
 
 		spawnFruit();
 	}
 
+	private void addDirection(Direction direction) {
+		directions[(directionHead + directionCount) % MAX_DIRECTIONS] = direction;
+		directionCount++;
+	}
+
+	private Direction lastDirection() {
+		if (directionCount == 0) {
+			return null;
+		}
+		return directions[(directionHead + directionCount - 1) % MAX_DIRECTIONS];
+	}
+
 	public boolean isNewGame() {
 		return isNewGame;
 	}
@@ -259,23 +373,20 @@ public class SnakeGame extends JFrame {
 		return isPaused;
 	}
 
-	private void spawnFruit() {
-		this.nextFruitScore = 100;
+	public int getSpeed() {
+		return speed;
+	}
 
-		int index = random.nextInt(BoardPanel.COL_COUNT * BoardPanel.ROW_COUNT - snake.size());
+	private void spawnFruit() {
+		this.nextFruitScore = SnakeRules.FRUIT_SCORE;
+		this.fruitCell = -1;
 
-		int freeFound = -1;
-		for (int x = 0; x < BoardPanel.COL_COUNT; x++) {
-			for (int y = 0; y < BoardPanel.ROW_COUNT; y++) {
-				TileType type = board.getTile(x, y);
-				if (type == null || type == TileType.Fruit) {
-					if (++freeFound == index) {
-						board.setTile(x, y, TileType.Fruit);
-						break;
-					}
-				}
-			}
+		if (board.getFreeCount() == 0) {
+			return;
 		}
+
+		fruitCell = board.getFreeCell(random.nextInt(board.getFreeCount()));
+		board.setTile(fruitCell, TileType.Fruit);
 	}
 
 	public int getScore() {
@@ -291,11 +402,26 @@ public class SnakeGame extends JFrame {
 	}
 
 	public Direction getDirection() {
-		return directions.peek();
+		return directions[directionHead];
+	}
+
+	public int getHeadCell() {
+		return headCell;
 	}
 
+	/**
+	 * Usage: java SnakeGame [columns] [rows] [speed], 25 x 25 in real time by
+	 * default. The speed is a multiple of real time, or max to run the logic
+	 * as fast as it goes while the display keeps sampling it.
+	 */
 	public static void main(String[] args) {
-		SnakeGame snake = new SnakeGame();
+		int cols = args.length > 0 ? Integer.parseInt(args[0]) : BoardPanel.VIEW_COUNT;
+		int rows = args.length > 1 ? Integer.parseInt(args[1]) : cols;
+		int speed = args.length < 3 ? 1 : args[2].equals("max") ? 0 : Integer.parseInt(args[2]);
+		if (speed < 0) {
+			throw new IllegalArgumentException("speed " + speed);
+		}
+		SnakeGame snake = new SnakeGame(cols, rows, speed);
 		snake.startGame();
 	}
 
@@ -312,7 +438,7 @@ public class SnakeGame extends JFrame {
 		public SidePanel(SnakeGame game) {
 			this.game = game;
 
-			setPreferredSize(new Dimension(300, BoardPanel.COL_COUNT * BoardPanel.TILE_SIZE));
+			setPreferredSize(new Dimension(300, game.board.getPreferredSize().height));
 			setBackground(Color.BLACK);
 		}
 
@@ -346,6 +472,8 @@ public class SnakeGame extends JFrame {
 			g.drawString("Total Score: " + game.getScore(), LARGE_OFFSET, drawY += MESSAGE_STRIDE);
 			g.drawString("Fruit Eaten: " + game.getFruitsEaten(), LARGE_OFFSET, drawY += MESSAGE_STRIDE);
 			g.drawString("Fruit Score: " + game.getNextFruitScore(), LARGE_OFFSET, drawY += MESSAGE_STRIDE);
+			g.drawString("Speed: " + (game.getSpeed() == 0 ? "max" : game.getSpeed() + "x"), LARGE_OFFSET,
+					drawY += MESSAGE_STRIDE);
 
 			drawY = CONTROLS_OFFSET;
 			g.drawString("Move Up: W / Up Arrowkey", LARGE_OFFSET, drawY += MESSAGE_STRIDE);
@@ -353,6 +481,8 @@ public class SnakeGame extends JFrame {
 			g.drawString("Move Left: A / Left Arrowkey", LARGE_OFFSET, drawY += MESSAGE_STRIDE);
 			g.drawString("Move Right: D / Right Arrowkey", LARGE_OFFSET, drawY += MESSAGE_STRIDE);
 			g.drawString("Pause Game: P", LARGE_OFFSET, drawY += MESSAGE_STRIDE);
+			g.drawString("Autopilot: Space", LARGE_OFFSET, drawY += MESSAGE_STRIDE);
+			g.drawString("Change Speed: T", LARGE_OFFSET, drawY += MESSAGE_STRIDE);
 
 			g.drawString("Designed By", getWidth() / 2 - g.getFontMetrics().stringWidth("Designed By") / 2,
 					drawY += 80);
@@ -385,6 +515,64 @@ public class SnakeGame extends JFrame {
 
 	}
 
+	/**
+	 * Bounded single-producer, single-consumer ring of input events, each stamped
+	 * with System.nanoTime. The producer writes a slot and then publishes it by
+	 * advancing tail with lazySet. The consumer releases the slot the same way
+	 * through head. Neither side takes a lock. When the ring is full, the new
+	 * event is dropped.
+	 */
+	public static class InputQueue {
+
+		private final int[] events;
+
+		private final long[] stamps;
+
+		private final int mask;
+
+		private final AtomicLong head = new AtomicLong();
+
+		private final AtomicLong tail = new AtomicLong();
+
+		public InputQueue(int capacity) {
+			if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+				throw new IllegalArgumentException("capacity " + capacity + " is not a power of two");
+			}
+			this.events = new int[capacity];
+			this.stamps = new long[capacity];
+			this.mask = capacity - 1;
+		}
+
+		/**
+		 * Producer side. Returns false if the ring was full and the event was dropped.
+		 */
+		public boolean offer(int event, long nanoTime) {
+			long t = tail.get();
+			if (t - head.get() == events.length) {
+				return false;
+			}
+			events[(int) t & mask] = event;
+			stamps[(int) t & mask] = nanoTime;
+			tail.lazySet(t + 1);
+			return true;
+		}
+
+		/**
+		 * Consumer side. Takes the oldest event stamped no later than the deadline,
+		 * or returns -1 if there is none.
+		 */
+		public int poll(long deadline) {
+			long h = head.get();
+			if (h == tail.get() || stamps[(int) h & mask] - deadline > 0) {
+				return -1;
+			}
+			int event = events[(int) h & mask];
+			head.lazySet(h + 1);
+			return event;
+		}
+
+	}
+
 	public static class Clock {
 
 		private float millisPerCycle;
@@ -445,167 +633,1695 @@ public class SnakeGame extends JFrame {
 			return (elapsedCycles > 0);
 		}
 
+		public long millisUntilCycle() {
+			return (long) Math.max(0.0f, millisPerCycle - excessCycles);
+		}
+
+		public void skip() {
+			this.elapsedCycles = 0;
+			this.excessCycles = 0.0f;
+			this.lastUpdate = getCurrentTime();
+		}
+
 		private static final long getCurrentTime() {
 			return (System.nanoTime() / 1000000L);
 		}
 
 	}
 
-	public static class BoardPanel extends JPanel {
+	/**
+	 * Steers a snake toward the fruit without a display. The planner runs A* with
+	 * the torus distance as its heuristic. It treats each body segment as blocked
+	 * only until the tail will have left it, and accepts a path only if the snake
+	 * could still chase its tail, or has room for its whole length, after eating.
+	 * When no path is safe it follows a Hamiltonian cycle, and when that is
+	 * blocked too it takes the move with the most room. An accepted path is
+	 * followed without searching again until the fruit is eaten. After a failed
+	 * search it waits an exponentially growing number of ticks before trying
+	 * again. All search state lives in arrays sized to the board at construction,
+	 * so planning allocates nothing. The body is tracked by the move on which the
+	 * head entered each cell, so a tick writes one cell whatever the snake's
+	 * length. Every search is capped so a tick stays well under a millisecond on
+	 * any board. An A* search that reaches too many cells counts as failed. A
+	 * room check that reaches its cap only passes a planned path if the tail
+	 * could be chased, but is enough room for an escape move.
+	 */
+	public static class Autopilot {
 
-		private static final long serialVersionUID = -54321L;
+		private static final int MAX_BACKOFF = 64;
 
-		public static final int COL_COUNT = 25;
+		// cells one A* search or one flood fill may reach within a tick
+		private static final int SEARCH_LIMIT = 4096;
 
-		public static final int ROW_COUNT = 25;
+		private static final int FLOOD_LIMIT = 2048;
 
-		public static final int TILE_SIZE = 30;
+		// what flood returns on finding a way to chase the tail
+		private static final int TAIL = Integer.MAX_VALUE;
 
-		public static final float STROKE_SIZE = TILE_SIZE / 10;
+		private static final Direction[] DIRECTIONS = Direction.values();
 
-		private static final int EYE_LARGE_INSET = TILE_SIZE / 3;
+		private final int cols;
 
-		private static final int EYE_SMALL_INSET = TILE_SIZE / 6;
+		private final int rows;
 
-		private static final int EYE_LENGTH = TILE_SIZE / 5;
+		// the move on which the head entered each cell; a cell is body while this is above threshold
+		private final int[] entered;
 
-		private static final Font FONT = new Font("Tahoma", Font.BOLD, 40);
+		// entered values of plan cells, while isPathSafe lays the plan over them
+		private final int[] saved;
 
-		private SnakeGame game;
+		private int sequence;
 
-		private TileType[] tiles;
+		private int threshold;
 
-		public BoardPanel(SnakeGame game) {
-			this.game = game;
-			this.tiles = new TileType[ROW_COUNT * COL_COUNT];
+		private int lastHead = -1;
 
-			setPreferredSize(new Dimension(COL_COUNT * TILE_SIZE, ROW_COUNT * TILE_SIZE));
-			setBackground(Color.BLACK);
+		private final int[] depth;
+
+		private final byte[] parent;
+
+		private final long[] visited;
+
+		// every cell pushed by the current search, in push order, which is also the BFS queue
+		private final int[] touched;
+
+		private int touchedCount;
+
+		// A* open list: three LIFO buckets, for f, f + 1 and f + 2, linked through the cells
+		private final int[] link;
+
+		private final int[] buckets = new int[3];
+
+		private final int[] plan;
+
+		private int planLength;
+
+		private int planIndex;
+
+		private int planFruit = -1;
+
+		private int backoff;
+
+		private int waitTicks;
+
+		public Autopilot(int cols, int rows) {
+			int cells = cols * rows;
+			this.cols = cols;
+			this.rows = rows;
+			this.entered = new int[cells];
+			this.saved = new int[cells];
+			this.depth = new int[cells];
+			this.parent = new byte[cells];
+			this.visited = new long[(cells + 63) >>> 6];
+			this.touched = new int[cells];
+			this.link = new int[cells];
+			this.plan = new int[cells];
 		}
 
-		public void clearBoard() {
-			for (int i = 0; i < tiles.length; i++) {
-				tiles[i] = null;
-			}
+		/**
+		 * Forgets the plan and the body, for a new game or after moves made
+		 * without the autopilot.
+		 */
+		public void reset() {
+			planLength = 0;
+			backoff = 0;
+			waitTicks = 0;
+			lastHead = -1;
 		}
 
-		public void setTile(Point point, TileType type) {
-			setTile(point.x, point.y, type);
+		/**
+		 * Picks the next move for the snake held in the ring from head to tail. The
+		 * tail stays put for the first growth moves, and fruit is -1 when there is none.
+		 * Every move since the last reset must have been asked for here.
+		 */
+		public Direction next(int[] snake, int snakeHead, int snakeLength, int growth, int fruit) {
+			int head = snake[snakeHead];
+			track(snake, snakeHead, snakeLength, growth);
+			if (planIndex + 1 < planLength && plan[planIndex] == head && planFruit == fruit) {
+				return toward(head, plan[++planIndex]);
+			}
+			planLength = 0;
+
+			if (fruit >= 0 && waitTicks == 0) {
+				if (findPath(head, fruit) && isPathSafe(snakeLength + growth)) {
+					planIndex = 0;
+					planFruit = fruit;
+					backoff = 0;
+					return toward(head, plan[0]);
+				}
+				planLength = 0;
+				backoff = Math.min(backoff == 0 ? 1 : backoff * 2, MAX_BACKOFF);
+				waitTicks = backoff;
+			} else if (waitTicks > 0) {
+				waitTicks--;
+			}
+
+			return escape(head, snakeLength + growth);
 		}
 
-		public void setTile(int x, int y, TileType type) {
-			tiles[y * ROW_COUNT + x] = type;
+		/**
+		 * Numbers the head's cell with the move that entered it. The body cell i
+		 * from the head then has the tail leave it after snakeLength - i + growth
+		 * moves, which is how far its number is above the threshold, so cells the
+		 * tail has left need no clearing. Only after a reset, or once the numbers
+		 * grow large, is the whole body numbered again.
+		 */
+		private void track(int[] snake, int snakeHead, int snakeLength, int growth) {
+			int head = snake[snakeHead];
+			if (lastHead >= 0 && snakeLength > 1 && snake[(snakeHead + 1) % snake.length] == lastHead
+					&& sequence < Integer.MAX_VALUE / 2) {
+				entered[head] = ++sequence;
+			} else if (head != lastHead) {
+				if (sequence >= Integer.MAX_VALUE / 2) {
+					Arrays.fill(entered, 0);
+					sequence = 0;
+				}
+				// every number left from earlier ends up at or below the new threshold
+				sequence += snakeLength + growth;
+				for (int i = 0; i < snakeLength; i++) {
+					entered[snake[(snakeHead + i) % snake.length]] = sequence - i;
+				}
+			}
+			lastHead = head;
+			threshold = sequence - snakeLength - growth;
 		}
 
-		public TileType getTile(int x, int y) {
-			return tiles[y * ROW_COUNT + x];
+		// moves from now until the cell is free, 0 or less for a free cell
+		private int blocked(int cell) {
+			return entered[cell] - threshold;
 		}
 
-		@Override
-		public void paintComponent(Graphics g) {
-			super.paintComponent(g);
+		private boolean findPath(int from, int to) {
+			clearVisited();
+			int open = 1;
+			int toX = to % cols;
+			int toY = to / cols;
+			int f = distance(from, to);
+			buckets[0] = buckets[1] = buckets[2] = -1;
+			push(from, 0, (byte) 0);
+			link[from] = -1;
+			buckets[f % 3] = from;
+
+			while (open > 0) {
+				int cell = buckets[f % 3];
+				if (cell < 0) {
+					f++;
+					continue;
+				}
+				buckets[f % 3] = link[cell];
+				open--;
+
+				if (cell == to) {
+					planLength = depth[to];
+					for (int i = planLength - 1; i >= 0; i--) {
+						plan[i] = cell;
+						cell = step(cell, (parent[cell] + 2) & 3);
+					}
+					return true;
+				}
 
-			for (int x = 0; x < COL_COUNT; x++) {
-				for (int y = 0; y < ROW_COUNT; y++) {
-					TileType type = getTile(x, y);
-					if (type != null) {
-						drawTile(x * TILE_SIZE, y * TILE_SIZE, type, g);
+				if (touchedCount > SEARCH_LIMIT) {
+					return false;
+				}
+
+				// neighbours are stepped from x and y directly, as division dominates the inner loop
+				int time = depth[cell] + 1;
+				int x = cell % cols;
+				int y = cell / cols;
+				for (int dir = 0; dir < 4; dir++) {
+					int nextX = x;
+					int nextY = y;
+					switch (dir) {
+						case 0:
+							nextY = y == 0 ? rows - 1 : y - 1;
+							break;
+						case 1:
+							nextX = x == cols - 1 ? 0 : x + 1;
+							break;
+						case 2:
+							nextY = y == rows - 1 ? 0 : y + 1;
+							break;
+						default:
+							nextX = x == 0 ? cols - 1 : x - 1;
+							break;
+					}
+					int next = nextY * cols + nextX;
+					if (isVisited(next) || blocked(next) > time) {
+						continue;
 					}
+					push(next, time, (byte) dir);
+					int dx = Math.abs(nextX - toX);
+					int dy = Math.abs(nextY - toY);
+					int bucket = (time + Math.min(dx, cols - dx) + Math.min(dy, rows - dy)) % 3;
+					link[next] = buckets[bucket];
+					buckets[bucket] = next;
+					open++;
 				}
 			}
+			return false;
+		}
 
-			g.setColor(Color.DARK_GRAY);
-			g.drawRect(0, 0, getWidth() - 1, getHeight() - 1);
-			for (int x = 0; x < COL_COUNT; x++) {
-				for (int y = 0; y < ROW_COUNT; y++) {
-					g.drawLine(x * TILE_SIZE, 0, x * TILE_SIZE, getHeight());
-					g.drawLine(0, y * TILE_SIZE, getWidth(), y * TILE_SIZE);
+		/**
+		 * Lays the snake along the planned path as it will be after eating and
+		 * checks that the head has a way out from the fruit. The plan's cells are
+		 * numbered as the head will enter them and the tail held back one move for
+		 * the fruit, then both are put back.
+		 */
+		private boolean isPathSafe(int length) {
+			length++;
+			threshold--;
+			for (int i = 0; i < planLength; i++) {
+				saved[i] = entered[plan[i]];
+				entered[plan[i]] = sequence + i + 1;
+			}
+			int room = flood(plan[planLength - 1], planLength, Math.min(length, FLOOD_LIMIT));
+			for (int i = 0; i < planLength; i++) {
+				entered[plan[i]] = saved[i];
+			}
+			threshold++;
+			return room == TAIL || room > length;
+		}
+
+		private Direction escape(int head, int length) {
+			int limit = Math.min(length, FLOOD_LIMIT);
+			Direction cycle = cycleDirection(head);
+			if (cycle != null) {
+				int next = step(head, cycle.ordinal());
+				if (blocked(next) <= 1 && flood(next, 1, limit) > limit) {
+					return cycle;
 				}
 			}
 
-			if (game.isGameOver() || game.isNewGame() || game.isPaused()) {
-				g.setColor(Color.WHITE);
+			int best = -1;
+			int bestRoom = -1;
+			for (int dir = 0; dir < 4; dir++) {
+				int next = step(head, dir);
+				if (blocked(next) <= 1) {
+					int room = flood(next, 1, limit);
+					if (room > bestRoom) {
+						best = dir;
+						bestRoom = room;
+					}
+				}
+			}
+			return best < 0 ? (cycle != null ? cycle : Direction.North) : DIRECTIONS[best];
+		}
 
-				int centerX = getWidth() / 2;
-				int centerY = getHeight() / 2;
+		/**
+		 * Counts the cells reachable from the given cell at the given time, up to
+		 * limit + 1. Reaching a cell that was occupied at that time and has since
+		 * been vacated means the tail can be chased, which returns TAIL.
+		 */
+		private int flood(int from, int time, int limit) {
+			clearVisited();
+			push(from, time, (byte) 0);
+			for (int i = 0; i < touchedCount && touchedCount <= limit; i++) {
+				int cell = touched[i];
+				int next = depth[cell] + 1;
+				for (int dir = 0; dir < 4; dir++) {
+					int neighbor = step(cell, dir);
+					if (isVisited(neighbor) || blocked(neighbor) > next) {
+						continue;
+					}
+					if (blocked(neighbor) > time) {
+						return TAIL;
+					}
+					push(neighbor, next, (byte) dir);
+				}
+			}
+			return touchedCount;
+		}
 
-				String largeMessage = null;
-				String smallMessage = null;
-				if (game.isNewGame()) {
-					largeMessage = "Snake Game!";
-					smallMessage = "Press Enter to Start";
-				} else if (game.isGameOver()) {
-					largeMessage = "Game Over!";
-					smallMessage = "Press Enter to Restart";
-				} else if (game.isPaused()) {
-					largeMessage = "Paused";
-					smallMessage = "Press P to Resume";
+		/**
+		 * The successor of a cell on a Hamiltonian cycle that sweeps the rows back
+		 * and forth and returns up column 0, or the transpose of that when only the
+		 * column count is even. When both counts are odd no such cycle exists
+		 * without wrapping, so the last row is left off it and gets null.
+		 */
+		private Direction cycleDirection(int cell) {
+			int x = cell % cols;
+			int y = cell / cols;
+			if (rows % 2 == 0 || cols % 2 != 0) {
+				int height = rows - rows % 2;
+				if (y >= height) {
+					return null;
 				}
+				return sweep(x, y, cols, height, Direction.North, Direction.East, Direction.South, Direction.West);
+			}
+			return sweep(y, x, rows, cols, Direction.West, Direction.South, Direction.East, Direction.North);
+		}
 
-				g.setFont(FONT);
-				g.drawString(largeMessage, centerX - g.getFontMetrics().stringWidth(largeMessage) / 2, centerY - 50);
-				g.drawString(smallMessage, centerX - g.getFontMetrics().stringWidth(smallMessage) / 2, centerY + 50);
+		private static Direction sweep(int across, int down, int width, int height, Direction back, Direction forward,
+				Direction advance, Direction reverse) {
+			if (across == 0) {
+				return down == 0 ? forward : back;
 			}
+			if (down % 2 == 0) {
+				return across < width - 1 ? forward : advance;
+			}
+			if (across > 1) {
+				return reverse;
+			}
+			return down == height - 1 ? reverse : advance;
 		}
 
-		private void drawTile(int x, int y, TileType type, Graphics g) {
-			switch (type) {
+		private Direction toward(int from, int to) {
+			for (int dir = 0; dir < 4; dir++) {
+				if (step(from, dir) == to) {
+					return DIRECTIONS[dir];
+				}
+			}
+			throw new IllegalStateException("cell " + to + " is not next to " + from);
+		}
 
-				case Fruit:
-					g.setColor(Color.RED);
-					g.fillOval(x + 2, y + 2, TILE_SIZE - 4, TILE_SIZE - 4);
-					break;
+		private int step(int cell, int dir) {
+			return SnakeRules.step(cell, dir, cols, rows);
+		}
 
-				case SnakeBody:
-					g.setColor(Color.GREEN);
-					g.fillRect(x, y, TILE_SIZE, TILE_SIZE);
-					break;
+		private int distance(int a, int b) {
+			return SnakeRules.distance(a, b, cols, rows);
+		}
 
-				case SnakeHead:
-					g.setColor(Color.GREEN);
-					g.fillRect(x, y, TILE_SIZE, TILE_SIZE);
+		private void push(int cell, int time, byte dir) {
+			visited[cell >>> 6] |= 1L << cell;
+			depth[cell] = time;
+			parent[cell] = dir;
+			touched[touchedCount++] = cell;
+		}
 
-					g.setColor(Color.BLACK);
-					Graphics2D g2d = (Graphics2D) g;
-					g2d.setStroke(new BasicStroke(STROKE_SIZE));
+		private boolean isVisited(int cell) {
+			return (visited[cell >>> 6] & (1L << cell)) != 0;
+		}
 
-					switch (game.getDirection()) {
-						case North: {
-							int baseY = y + EYE_SMALL_INSET;
-							g.drawLine(x + EYE_LARGE_INSET, baseY, x + EYE_LARGE_INSET, baseY + EYE_LENGTH);
-							g.drawLine(x + TILE_SIZE - EYE_LARGE_INSET, baseY, x + TILE_SIZE - EYE_LARGE_INSET,
-									baseY + EYE_LENGTH);
-							break;
-						}
+		private void clearVisited() {
+			for (int i = 0; i < touchedCount; i++) {
+				visited[touched[i] >>> 6] = 0;
+			}
+			touchedCount = 0;
+		}
 
-						case South: {
-							int baseY = y + TILE_SIZE - EYE_SMALL_INSET;
-							g.drawLine(x + EYE_LARGE_INSET, baseY, x + EYE_LARGE_INSET, baseY - EYE_LENGTH);
-							g.drawLine(x + TILE_SIZE - EYE_LARGE_INSET, baseY, x + TILE_SIZE - EYE_LARGE_INSET,
-									baseY - EYE_LENGTH);
-							break;
-						}
+	}
 
-						case West: {
-							int baseX = x + EYE_SMALL_INSET;
-							g.drawLine(baseX, y + EYE_LARGE_INSET, baseX + EYE_LENGTH, y + EYE_LARGE_INSET);
-							g.drawLine(baseX, y + TILE_SIZE - EYE_LARGE_INSET, baseX + EYE_LENGTH,
-									y + TILE_SIZE - EYE_LARGE_INSET);
-							break;
-						}
+	public static class BoardPanel extends JPanel {
 
-						case East: {
-							int baseX = x + TILE_SIZE - EYE_SMALL_INSET;
-							g.drawLine(baseX, y + EYE_LARGE_INSET, baseX - EYE_LENGTH, y + EYE_LARGE_INSET);
-							g.drawLine(baseX, y + TILE_SIZE - EYE_LARGE_INSET, baseX - EYE_LENGTH,
-									y + TILE_SIZE - EYE_LARGE_INSET);
-							break;
-						}
+		private static final long serialVersionUID = -54321L;
 
-					}
-					g2d.setStroke(new BasicStroke(1));
-					break;
-			}
-		}
-	}
-}
\ No newline at end of file
+		public static final int VIEW_COUNT = 25;
+
+		public static final int TILE_SIZE = 30;
+
+		public static final float STROKE_SIZE = TILE_SIZE / 10;
+
+		private static final int EYE_LARGE_INSET = TILE_SIZE / 3;
+
+		private static final int EYE_SMALL_INSET = TILE_SIZE / 6;
+
+		private static final int EYE_LENGTH = TILE_SIZE / 5;
+
+		private static final Font FONT = new Font("Tahoma", Font.BOLD, 40);
+
+		private static final Stroke EYE_STROKE = new BasicStroke(STROKE_SIZE);
+
+		private static final int MAX_DIRTY = 64;
+
+		private static final Direction[] HEADINGS = Direction.values();
+
+		private SnakeGame game;
+
+		private static final TileType[] TYPES = TileType.values();
+
+		private int cols;
+
+		private int rows;
+
+		private int viewCols;
+
+		private int viewRows;
+
+		// tile codes as SnakeRules defines them
+		private byte[] tiles;
+
+		private int[] free;
+
+		private int[] freeIndex;
+
+		private int freeCount;
+
+		// grid lines over a transparent background, and the view as last painted
+		private BufferedImage grid;
+
+		private BufferedImage atlas;
+
+		private BufferedImage frame;
+
+		private int frameLeft;
+
+		private int frameTop;
+
+		// cells changed since the last paint, filled by the game loop and drained by paintComponent
+		private final Object dirtyLock = new Object();
+
+		private final int[] dirty = new int[MAX_DIRTY];
+
+		private final int[] painting = new int[MAX_DIRTY];
+
+		private int dirtyCount;
+
+		private boolean frameStale = true;
+
+		// pixel bounds of the cells changed since the last flush, and whether the whole view needs it
+		private int dirtyLeft = Integer.MAX_VALUE;
+
+		private int dirtyTop = Integer.MAX_VALUE;
+
+		private int dirtyRight;
+
+		private int dirtyBottom;
+
+		private boolean repaintAll;
+
+		public BoardPanel(SnakeGame game, int cols, int rows) {
+			if (cols < 2 || rows < 2 || (long) cols * rows > Integer.MAX_VALUE - 8) {
+				throw new IllegalArgumentException("board " + cols + " x " + rows);
+			}
+			this.game = game;
+			this.cols = cols;
+			this.rows = rows;
+			this.viewCols = Math.min(cols, VIEW_COUNT);
+			this.viewRows = Math.min(rows, VIEW_COUNT);
+			this.tiles = new byte[cols * rows];
+			this.free = new int[tiles.length];
+			this.freeIndex = new int[tiles.length];
+			clearBoard();
+
+			setPreferredSize(new Dimension(viewCols * TILE_SIZE, viewRows * TILE_SIZE));
+			setBackground(Color.BLACK);
+		}
+
+		public void clearBoard() {
+			for (int i = 0; i < tiles.length; i++) {
+				tiles[i] = 0;
+				free[i] = i;
+				freeIndex[i] = i;
+			}
+			freeCount = tiles.length;
+			synchronized (dirtyLock) {
+				dirtyCount = 0;
+				frameStale = true;
+			}
+			repaint();
+		}
+
+		/**
+		 * Empty cells are kept as a dense array plus each cell's position in it,
+		 * so a cell is added or removed in O(1) by swapping with the last one.
+		 */
+		public void setTile(int x, int y, TileType type) {
+			setTile(y * cols + x, type);
+		}
+
+		public void setTile(int cell, TileType type) {
+			freeCount = SnakeRules.set(tiles, free, freeIndex, 0, freeCount, cell, SnakeRules.code(type));
+			markDirty(cell);
+		}
+
+		/**
+		 * Queues a cell for the next paint and grows the area the next flush will
+		 * repaint. A view that scrolls moves with the head every tick, so it is
+		 * always redrawn whole.
+		 */
+		private void markDirty(int cell) {
+			synchronized (dirtyLock) {
+				if (frameStale) {
+					return;
+				}
+				if (viewCols < cols || viewRows < rows || dirtyCount == MAX_DIRTY) {
+					frameStale = true;
+					repaintAll = true;
+					return;
+				}
+				dirty[dirtyCount++] = cell;
+				int x = cell % cols * TILE_SIZE;
+				int y = cell / cols * TILE_SIZE;
+				dirtyLeft = Math.min(dirtyLeft, x);
+				dirtyTop = Math.min(dirtyTop, y);
+				dirtyRight = Math.max(dirtyRight, x + TILE_SIZE);
+				dirtyBottom = Math.max(dirtyBottom, y + TILE_SIZE);
+			}
+		}
+
+		/**
+		 * Requests a repaint of whatever changed since the last flush, once per
+		 * displayed frame however many ticks ran in between.
+		 */
+		public void flush() {
+			int left;
+			int top;
+			int right;
+			int bottom;
+			boolean all;
+			synchronized (dirtyLock) {
+				left = dirtyLeft;
+				top = dirtyTop;
+				right = dirtyRight;
+				bottom = dirtyBottom;
+				all = repaintAll;
+				dirtyLeft = dirtyTop = Integer.MAX_VALUE;
+				dirtyRight = dirtyBottom = 0;
+				repaintAll = false;
+			}
+			if (all) {
+				repaint();
+			} else if (left < right) {
+				repaint(left, top, right - left, bottom - top);
+			}
+		}
+
+		public int getFreeCount() {
+			return freeCount;
+		}
+
+		public int getFreeCell(int index) {
+			return free[index];
+		}
+
+		public TileType getTile(int x, int y) {
+			return getTile(y * cols + x);
+		}
+
+		public TileType getTile(int cell) {
+			int tile = tiles[cell];
+			return tile == 0 ? null : TYPES[tile - 1];
+		}
+
+		public byte getCode(int cell) {
+			return tiles[cell];
+		}
+
+		public int getCols() {
+			return cols;
+		}
+
+		public int getRows() {
+			return rows;
+		}
+
+		@Override
+		public void paintComponent(Graphics g) {
+			int width = getWidth();
+			int height = getHeight();
+			if (frame == null || frame.getWidth() != width || frame.getHeight() != height) {
+				frame = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+				grid = createGrid(width, height);
+				synchronized (dirtyLock) {
+					frameStale = true;
+				}
+			}
+
+			// the view wraps around the board like the snake does and keeps the head centred
+			int head = game.getHeadCell();
+			if (head < 0) {
+				head = (rows / 2) * cols + cols / 2;
+			}
+			int left = viewCols < cols ? Math.floorMod(head % cols - viewCols / 2, cols) : 0;
+			int top = viewRows < rows ? Math.floorMod(head / cols - viewRows / 2, rows) : 0;
+
+			boolean rebuild;
+			int count;
+			synchronized (dirtyLock) {
+				rebuild = frameStale || left != frameLeft || top != frameTop;
+				count = rebuild ? 0 : dirtyCount;
+				System.arraycopy(dirty, 0, painting, 0, count);
+				dirtyCount = 0;
+				frameStale = false;
+			}
+
+			Graphics2D f = frame.createGraphics();
+			if (rebuild) {
+				f.setColor(getBackground());
+				f.fillRect(0, 0, width, height);
+				for (int i = 0; i < viewCols; i++) {
+					int x = left + i < cols ? left + i : left + i - cols;
+					for (int j = 0; j < viewRows; j++) {
+						int y = top + j < rows ? top + j : top + j - rows;
+						TileType type = getTile(x, y);
+						if (type != null) {
+							drawTile(i * TILE_SIZE, j * TILE_SIZE, type, f);
+						}
+					}
+				}
+				f.drawImage(grid, 0, 0, null);
+				frameLeft = left;
+				frameTop = top;
+			} else {
+				// only reached for a fixed view, where screen and board cells coincide
+				for (int k = 0; k < count; k++) {
+					int x = painting[k] % cols * TILE_SIZE;
+					int y = painting[k] / cols * TILE_SIZE;
+					f.setColor(getBackground());
+					f.fillRect(x, y, TILE_SIZE, TILE_SIZE);
+					TileType type = getTile(painting[k]);
+					if (type != null) {
+						drawTile(x, y, type, f);
+					}
+					f.drawImage(grid, x, y, x + TILE_SIZE, y + TILE_SIZE, x, y, x + TILE_SIZE, y + TILE_SIZE, null);
+				}
+			}
+			f.dispose();
+
+			g.drawImage(frame, 0, 0, null);
+
+			if (game.isGameOver() || game.isNewGame() || game.isPaused()) {
+				g.setColor(Color.WHITE);
+
+				int centerX = getWidth() / 2;
+				int centerY = getHeight() / 2;
+
+				String largeMessage = null;
+				String smallMessage = null;
+				if (game.isNewGame()) {
+					largeMessage = "Snake Game!";
+					smallMessage = "Press Enter to Start";
+				} else if (game.isGameOver()) {
+					largeMessage = "Game Over!";
+					smallMessage = "Press Enter to Restart";
+				} else if (game.isPaused()) {
+					largeMessage = "Paused";
+					smallMessage = "Press P to Resume";
+				}
+
+				g.setFont(FONT);
+				g.drawString(largeMessage, centerX - g.getFontMetrics().stringWidth(largeMessage) / 2, centerY - 50);
+				g.drawString(smallMessage, centerX - g.getFontMetrics().stringWidth(smallMessage) / 2, centerY + 50);
+			}
+		}
+
+		private BufferedImage createGrid(int width, int height) {
+			BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			Graphics2D g = image.createGraphics();
+			g.setColor(Color.DARK_GRAY);
+			g.drawRect(0, 0, width - 1, height - 1);
+			for (int x = 0; x < viewCols; x++) {
+				g.drawLine(x * TILE_SIZE, 0, x * TILE_SIZE, height);
+			}
+			for (int y = 0; y < viewRows; y++) {
+				g.drawLine(0, y * TILE_SIZE, width, y * TILE_SIZE);
+			}
+			g.dispose();
+			return image;
+		}
+
+		/**
+		 * Returns the sprite atlas, built on first use as one row of tiles: fruit,
+		 * body, then the head facing each Direction in ordinal order. It is a
+		 * compatible image, so Java2D can keep it in video memory and blit tiles
+		 * from it instead of rasterizing shapes every frame.
+		 */
+		private BufferedImage atlas() {
+			if (atlas == null) {
+				GraphicsConfiguration gc = getGraphicsConfiguration();
+				int width = (2 + HEADINGS.length) * TILE_SIZE;
+				atlas = gc != null ? gc.createCompatibleImage(width, TILE_SIZE, Transparency.TRANSLUCENT)
+						: new BufferedImage(width, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+				Graphics2D g = atlas.createGraphics();
+				paintSprite(0, 0, TileType.Fruit, null, g);
+				paintSprite(TILE_SIZE, 0, TileType.SnakeBody, null, g);
+				for (Direction heading : HEADINGS) {
+					paintSprite((2 + heading.ordinal()) * TILE_SIZE, 0, TileType.SnakeHead, heading, g);
+				}
+				g.dispose();
+			}
+			return atlas;
+		}
+
+		private void drawTile(int x, int y, TileType type, Graphics g) {
+			int sprite;
+			switch (type) {
+				case Fruit:
+					sprite = 0;
+					break;
+				case SnakeBody:
+					sprite = 1;
+					break;
+				default:
+					sprite = 2 + game.getDirection().ordinal();
+					break;
+			}
+			int left = sprite * TILE_SIZE;
+			g.drawImage(atlas(), x, y, x + TILE_SIZE, y + TILE_SIZE, left, 0, left + TILE_SIZE, TILE_SIZE, null);
+		}
+
+		private void paintSprite(int x, int y, TileType type, Direction heading, Graphics g) {
+			switch (type) {
+
+				case Fruit:
+					g.setColor(Color.RED);
+					g.fillOval(x + 2, y + 2, TILE_SIZE - 4, TILE_SIZE - 4);
+					break;
+
+				case SnakeBody:
+					g.setColor(Color.GREEN);
+					g.fillRect(x, y, TILE_SIZE, TILE_SIZE);
+					break;
+
+				case SnakeHead:
+					g.setColor(Color.GREEN);
+					g.fillRect(x, y, TILE_SIZE, TILE_SIZE);
+
+					g.setColor(Color.BLACK);
+					Graphics2D g2d = (Graphics2D) g;
+					Stroke stroke = g2d.getStroke();
+					g2d.setStroke(EYE_STROKE);
+
+					switch (heading) {
+						case North: {
+							int baseY = y + EYE_SMALL_INSET;
+							g.drawLine(x + EYE_LARGE_INSET, baseY, x + EYE_LARGE_INSET, baseY + EYE_LENGTH);
+							g.drawLine(x + TILE_SIZE - EYE_LARGE_INSET, baseY, x + TILE_SIZE - EYE_LARGE_INSET,
+									baseY + EYE_LENGTH);
+							break;
+						}
+
+						case South: {
+							int baseY = y + TILE_SIZE - EYE_SMALL_INSET;
+							g.drawLine(x + EYE_LARGE_INSET, baseY, x + EYE_LARGE_INSET, baseY - EYE_LENGTH);
+							g.drawLine(x + TILE_SIZE - EYE_LARGE_INSET, baseY, x + TILE_SIZE - EYE_LARGE_INSET,
+									baseY - EYE_LENGTH);
+							break;
+						}
+
+						case West: {
+							int baseX = x + EYE_SMALL_INSET;
+							g.drawLine(baseX, y + EYE_LARGE_INSET, baseX + EYE_LENGTH, y + EYE_LARGE_INSET);
+							g.drawLine(baseX, y + TILE_SIZE - EYE_LARGE_INSET, baseX + EYE_LENGTH,
+									y + TILE_SIZE - EYE_LARGE_INSET);
+							break;
+						}
+
+						case East: {
+							int baseX = x + TILE_SIZE - EYE_SMALL_INSET;
+							g.drawLine(baseX, y + EYE_LARGE_INSET, baseX - EYE_LENGTH, y + EYE_LARGE_INSET);
+							g.drawLine(baseX, y + TILE_SIZE - EYE_LARGE_INSET, baseX - EYE_LENGTH,
+									y + TILE_SIZE - EYE_LARGE_INSET);
+							break;
+						}
+
+					}
+					g2d.setStroke(stroke);
+					break;
+			}
+		}
+	}
+}
+
+/**
+ * The rules of a Snake tick over plain cell indices and tile codes, without
+ * Swing or timing. SnakeGame plays one game by them, and SnakeSimulation,
+ * SnakeBatch and SnakeArena play headless games by them, so all of them follow
+ * the same rules. Each caller keeps its own storage: SnakeGame's ring grows on
+ * demand and its board repaints changed cells, SnakeBatch packs many games
+ * into flat arrays, and SnakeArena codes its shared board by snake and fruit
+ * number. A board is a block of tile codes with its empty cells kept in a free
+ * set, written only through set.
+ */
+class SnakeRules {
+
+	// tile codes, 0 for an empty cell and otherwise TileType ordinal + 1
+	static final byte EMPTY = 0;
+
+	static final byte FRUIT = (byte) (SnakeGame.TileType.Fruit.ordinal() + 1);
+
+	static final byte HEAD = (byte) (SnakeGame.TileType.SnakeHead.ordinal() + 1);
+
+	static final byte BODY = (byte) (SnakeGame.TileType.SnakeBody.ordinal() + 1);
+
+	// a fruit is worth FRUIT_SCORE when it appears and one less each move, down to MIN_FRUIT_SCORE
+	static final int FRUIT_SCORE = 100;
+
+	static final int MIN_FRUIT_SCORE = 10;
+
+	private SnakeRules() {
+	}
+
+	static byte code(SnakeGame.TileType type) {
+		return (byte) (type == null ? 0 : type.ordinal() + 1);
+	}
+
+	/**
+	 * The cell one move from the given cell in the direction with the given
+	 * Direction ordinal, wrapping around the edges of the board.
+	 */
+	static int step(int cell, int direction, int cols, int rows) {
+		int x = cell % cols;
+		int y = cell / cols;
+		switch (direction) {
+			case 0:
+				y = y == 0 ? rows - 1 : y - 1;
+				break;
+			case 1:
+				x = x == cols - 1 ? 0 : x + 1;
+				break;
+			case 2:
+				y = y == rows - 1 ? 0 : y + 1;
+				break;
+			default:
+				x = x == 0 ? cols - 1 : x - 1;
+				break;
+		}
+		return y * cols + x;
+	}
+
+	/**
+	 * The fewest moves between two cells, going around the edges where shorter.
+	 */
+	static int distance(int a, int b, int cols, int rows) {
+		int dx = Math.abs(a % cols - b % cols);
+		int dy = Math.abs(a / cols - b / cols);
+		return Math.min(dx, cols - dx) + Math.min(dy, rows - dy);
+	}
+
+	/**
+	 * Whether the tail leaves its cell before the head moves onto the given
+	 * tile. It stays put while the snake is eating or still growing to its
+	 * minimum length, and otherwise leaves first, so the head may follow it.
+	 */
+	static boolean tailLeaves(byte target, int length) {
+		return tailLeaves(target == FRUIT, length);
+	}
+
+	/**
+	 * The same rule for boards that code their tiles another way, given whether
+	 * the head is moving onto a fruit.
+	 */
+	static boolean tailLeaves(boolean eating, int length) {
+		return !eating && length > SnakeGame.MIN_SNAKE_LENGTH;
+	}
+
+	/**
+	 * Whether moving onto the given tile, once the tail has left, ends the game.
+	 */
+	static boolean isCrash(byte target) {
+		return target == BODY || target == HEAD;
+	}
+
+	/**
+	 * The moves the tail will stay put for, ignoring fruit, for a snake of the
+	 * given length.
+	 */
+	static int growth(int length) {
+		return Math.max(0, SnakeGame.MIN_SNAKE_LENGTH + 1 - length);
+	}
+
+	/**
+	 * The value of the current fruit after a move that did not eat it.
+	 */
+	static int decay(int fruitScore) {
+		return fruitScore > MIN_FRUIT_SCORE ? fruitScore - 1 : fruitScore;
+	}
+
+	/**
+	 * Writes a tile code into the board block at base and returns the new count
+	 * of empty cells. Empty cells are kept as a dense array plus each cell's
+	 * position in it, so a cell is added or removed in O(1) by swapping with the
+	 * last one.
+	 */
+	static int set(byte[] tiles, int[] free, int[] freeIndex, int base, int freeCount, int cell, byte type) {
+		byte old = tiles[base + cell];
+		tiles[base + cell] = type;
+		if (old == EMPTY && type != EMPTY) {
+			int last = free[base + --freeCount];
+			int at = freeIndex[base + cell];
+			free[base + at] = last;
+			freeIndex[base + last] = at;
+			freeIndex[base + cell] = -1;
+		} else if (old != EMPTY && type == EMPTY) {
+			free[base + freeCount] = cell;
+			freeIndex[base + cell] = freeCount++;
+		}
+		return freeCount;
+	}
+
+	/**
+	 * The SplitMix64 finalizer, which the headless runners step their seeded
+	 * streams through by adding 0x9E3779B97F4A7C15.
+	 */
+	static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+}
+
+/**
+ * Headless autopilot runs under the same rules as SnakeGame, to weigh path
+ * quality against planning time. Each game ends when the snake dies, fills
+ * the board, stalls for a whole board's worth of moves without eating, or
+ * runs out of moves. Planning time is measured after an untimed warm-up run.
+ * Usage: java SnakeSimulation [columns] [rows] [games] [seed] [moves per game]
+ */
+class SnakeSimulation {
+
+	// an untimed run first, on a board larger than the planner's search caps, so
+	// JIT compilation is not counted against planning time
+	private static final int WARM_UP_SIZE = 128;
+
+	private static final int WARM_UP_GAMES = 4;
+
+	// planning is timed in thread CPU time where the JVM supports it, so other
+	// threads and processes taking the CPU mid-tick do not count against it
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+
+	private long totalTicks;
+
+	private long totalFruit;
+
+	private long planNanos;
+
+	private long worstNanos;
+
+	private long slowTicks;
+
+	private int filled;
+
+	public static void main(String[] args) {
+		int cols = args.length > 0 ? Integer.parseInt(args[0]) : 25;
+		int rows = args.length > 1 ? Integer.parseInt(args[1]) : cols;
+		int games = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : 1L;
+		long moves = args.length > 4 ? Long.parseLong(args[4]) : Long.MAX_VALUE;
+
+		new SnakeSimulation().play(WARM_UP_SIZE, WARM_UP_SIZE, WARM_UP_GAMES, seed, moves);
+		SnakeSimulation simulation = new SnakeSimulation();
+		simulation.play(cols, rows, games, seed, moves);
+
+		System.out.printf("%d games on %d x %d: %.1f fruit per game, %d filled the board%n", games, cols, rows,
+				(double) simulation.totalFruit / games, simulation.filled);
+		System.out.printf("%d ticks, %.2f us per tick on average, %.2f ms at worst, %d over 1 ms%n",
+				simulation.totalTicks, simulation.planNanos / 1e3 / simulation.totalTicks,
+				simulation.worstNanos / 1e6, simulation.slowTicks);
+	}
+
+	private void play(int cols, int rows, int games, long seed, long moves) {
+		int cells = cols * rows;
+		byte[] board = new byte[cells];
+		int[] free = new int[cells];
+		int[] freeIndex = new int[cells];
+		int[] snake = new int[cells];
+		Random random = new Random(seed);
+		SnakeGame.Autopilot autopilot = new SnakeGame.Autopilot(cols, rows);
+
+		for (int game = 0; game < games; game++) {
+			for (int i = 0; i < cells; i++) {
+				board[i] = SnakeRules.EMPTY;
+				free[i] = i;
+				freeIndex[i] = i;
+			}
+			int freeCount = cells;
+			int snakeHead = 0;
+			int snakeLength = 1;
+			snake[0] = (rows / 2) * cols + cols / 2;
+			freeCount = SnakeRules.set(board, free, freeIndex, 0, freeCount, snake[0], SnakeRules.HEAD);
+			int fruit = free[random.nextInt(freeCount)];
+			freeCount = SnakeRules.set(board, free, freeIndex, 0, freeCount, fruit, SnakeRules.FRUIT);
+			autopilot.reset();
+
+			int stall = 0;
+			for (long move = 0; move < moves && stall < cells; move++) {
+				int growth = SnakeRules.growth(snakeLength);
+				long start = now();
+				SnakeGame.Direction direction = autopilot.next(snake, snakeHead, snakeLength, growth, fruit);
+				long elapsed = now() - start;
+				planNanos += elapsed;
+				worstNanos = Math.max(worstNanos, elapsed);
+				if (elapsed > 1000000L) {
+					slowTicks++;
+				}
+				totalTicks++;
+				stall++;
+
+				int head = snake[snakeHead];
+				int next = SnakeRules.step(head, direction.ordinal(), cols, rows);
+				byte old = board[next];
+				if (SnakeRules.tailLeaves(old, snakeLength)) {
+					int tail = snake[(snakeHead + snakeLength - 1) % cells];
+					snakeLength--;
+					freeCount = SnakeRules.set(board, free, freeIndex, 0, freeCount, tail, SnakeRules.EMPTY);
+					old = board[next];
+				}
+				if (SnakeRules.isCrash(old)) {
+					break;
+				}
+				freeCount = SnakeRules.set(board, free, freeIndex, 0, freeCount, head, SnakeRules.BODY);
+				snakeHead = (snakeHead == 0 ? cells : snakeHead) - 1;
+				snake[snakeHead] = next;
+				snakeLength++;
+				freeCount = SnakeRules.set(board, free, freeIndex, 0, freeCount, next, SnakeRules.HEAD);
+
+				if (old == SnakeRules.FRUIT) {
+					totalFruit++;
+					stall = 0;
+					if (freeCount == 0) {
+						filled++;
+						break;
+					}
+					fruit = free[random.nextInt(freeCount)];
+					freeCount = SnakeRules.set(board, free, freeIndex, 0, freeCount, fruit, SnakeRules.FRUIT);
+				}
+			}
+		}
+	}
+
+	private static long now() {
+		return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+}
+
+/**
+ * Headless arena for many snakes on one shared torus, for load testing bots.
+ * Each tick first asks every live snake's policy for a move, in parallel,
+ * while the board is only read. The moves are then resolved in parallel passes
+ * that each write disjoint cells. Tails move first, then every target cell is
+ * claimed by compare-and-set in a per-cell array, so no lock is shared and
+ * snakes that claim the same cell all die no matter which thread got there
+ * first. Fruit and snakes are respawned sequentially in snake order from
+ * per-arena and per-snake SplitMix64 streams, so a seed replays the same game
+ * for any number of threads.
+ * Usage: java SnakeArena [columns] [rows] [snakes] [ticks] [greedy|random|mixed] [threads] [seed]
+ */
+class SnakeArena {
+
+	/**
+	 * Chooses a snake's next move. Called concurrently for different snakes, with
+	 * the board frozen for the duration of the call.
+	 */
+	interface Policy {
+		SnakeGame.Direction decide(SnakeArena arena, int snake);
+	}
+
+	static final Policy GREEDY = new Policy() {
+		@Override
+		public SnakeGame.Direction decide(SnakeArena arena, int snake) {
+			int head = arena.getHead(snake);
+			int target = arena.getFruit(snake % arena.getFruitCount());
+			int offset = (int) (arena.nextRandom(snake) & 3);
+			int best = -1;
+			int bestDistance = Integer.MAX_VALUE;
+			for (int i = 0; i < 4; i++) {
+				int dir = (i + offset) & 3;
+				int next = arena.step(head, dir);
+				int distance = target < 0 ? 0 : arena.distance(next, target);
+				if (arena.getCell(next) <= 0 && distance < bestDistance) {
+					best = dir;
+					bestDistance = distance;
+				}
+			}
+			return DIRECTIONS[best < 0 ? arena.getDirection(snake) : best];
+		}
+	};
+
+	static final Policy RANDOM = new Policy() {
+		@Override
+		public SnakeGame.Direction decide(SnakeArena arena, int snake) {
+			int head = arena.getHead(snake);
+			long bits = arena.nextRandom(snake);
+			int dir = arena.getDirection(snake);
+			if ((bits & 7) != 0 && arena.getCell(arena.step(head, dir)) <= 0) {
+				return DIRECTIONS[dir];
+			}
+			int offset = (int) (bits >>> 3) & 3;
+			for (int i = 0; i < 4; i++) {
+				int turn = (i + offset) & 3;
+				if (arena.getCell(arena.step(head, turn)) <= 0) {
+					return DIRECTIONS[turn];
+				}
+			}
+			return DIRECTIONS[dir];
+		}
+	};
+
+	private static final SnakeGame.Direction[] DIRECTIONS = SnakeGame.Direction.values();
+
+	private static final int EMPTY = 0;
+
+	private static final int CONFLICT = -1;
+
+	private static final int GRAIN = 256;
+
+	private static final int SPAWN_TRIES = 64;
+
+	private final int cols;
+
+	private final int rows;
+
+	// EMPTY, snake + 1 for a body cell, or -(fruit + 1) for a fruit
+	private final int[] board;
+
+	// per cell: EMPTY, snake + 1 for the one snake moving there this tick, or CONFLICT
+	private final AtomicIntegerArray claims;
+
+	private final Policy[] policies;
+
+	// each snake's body as a ring of cells from its head, grown on demand
+	private final int[][] bodies;
+
+	private final int[] heads;
+
+	private final int[] lengths;
+
+	private final byte[] directions;
+
+	private final long[] randoms;
+
+	// target cell for the tick, or -1 for a snake that is dead or not yet spawned
+	private final int[] targets;
+
+	// fruit eaten this tick, or -1; a dead snake is marked with -2
+	private final int[] outcomes;
+
+	private final int[] fruits;
+
+	private final ForkJoinPool pool;
+
+	private long random;
+
+	private long moves;
+
+	private long deaths;
+
+	private long eaten;
+
+	SnakeArena(int cols, int rows, Policy[] policies, int fruitCount, int threads, long seed) {
+		if (cols < 2 || rows < 2 || (long) cols * rows > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("board " + cols + " x " + rows);
+		}
+		int snakes = policies.length;
+		this.cols = cols;
+		this.rows = rows;
+		this.board = new int[cols * rows];
+		this.claims = new AtomicIntegerArray(board.length);
+		this.policies = policies.clone();
+		this.bodies = new int[snakes][];
+		this.heads = new int[snakes];
+		this.lengths = new int[snakes];
+		this.directions = new byte[snakes];
+		this.randoms = new long[snakes];
+		this.targets = new int[snakes];
+		this.outcomes = new int[snakes];
+		this.fruits = new int[Math.max(1, fruitCount)];
+		this.pool = new ForkJoinPool(threads);
+		this.random = seed;
+
+		for (int i = 0; i < snakes; i++) {
+			bodies[i] = new int[8];
+			randoms[i] = SnakeRules.mix(seed + i);
+			targets[i] = -1;
+			spawnSnake(i);
+		}
+		for (int i = 0; i < fruits.length; i++) {
+			fruits[i] = -1;
+			spawnFruit(i);
+		}
+	}
+
+	public void tick() {
+		forEachSnake(i -> {
+			if (lengths[i] > 0) {
+				int dir = policies[i].decide(this, i).ordinal();
+				directions[i] = (byte) dir;
+				targets[i] = step(bodies[i][heads[i]], dir);
+			}
+		});
+
+		// tails leave first, so a snake may follow its own or another snake's tail
+		forEachSnake(i -> {
+			int target = targets[i];
+			if (target < 0) {
+				return;
+			}
+			if (SnakeRules.tailLeaves(board[target] < 0, lengths[i])) {
+				int[] body = bodies[i];
+				board[body[(heads[i] + lengths[i] - 1) % body.length]] = EMPTY;
+				lengths[i]--;
+			}
+			if (!claims.compareAndSet(target, EMPTY, i + 1)) {
+				claims.set(target, CONFLICT);
+			}
+		});
+
+		forEachSnake(i -> {
+			int target = targets[i];
+			outcomes[i] = -1;
+			if (target < 0) {
+				return;
+			}
+			int old = board[target];
+			if (claims.get(target) == CONFLICT || old > 0) {
+				outcomes[i] = -2;
+				return;
+			}
+			int[] body = bodies[i];
+			if (lengths[i] == body.length) {
+				int[] grown = new int[(int) Math.min(2L * body.length, board.length)];
+				for (int k = 0; k < lengths[i]; k++) {
+					grown[k] = body[(heads[i] + k) % body.length];
+				}
+				bodies[i] = body = grown;
+				heads[i] = 0;
+			}
+			heads[i] = (heads[i] == 0 ? body.length : heads[i]) - 1;
+			body[heads[i]] = target;
+			lengths[i]++;
+			board[target] = i + 1;
+			if (old < 0) {
+				outcomes[i] = -old - 1;
+			}
+		});
+
+		forEachSnake(i -> {
+			if (targets[i] >= 0) {
+				claims.set(targets[i], EMPTY);
+			}
+			if (outcomes[i] == -2) {
+				int[] body = bodies[i];
+				for (int k = 0; k < lengths[i]; k++) {
+					board[body[(heads[i] + k) % body.length]] = EMPTY;
+				}
+				lengths[i] = 0;
+			}
+		});
+
+		for (int i = 0; i < policies.length; i++) {
+			if (targets[i] >= 0) {
+				moves++;
+			}
+			if (outcomes[i] >= 0) {
+				eaten++;
+				fruits[outcomes[i]] = -1;
+				spawnFruit(outcomes[i]);
+			} else if (outcomes[i] == -2) {
+				deaths++;
+			}
+			targets[i] = -1;
+			if (lengths[i] == 0) {
+				spawnSnake(i);
+			}
+		}
+		for (int i = 0; i < fruits.length; i++) {
+			if (fruits[i] < 0) {
+				spawnFruit(i);
+			}
+		}
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	public int getHead(int snake) {
+		return lengths[snake] > 0 ? bodies[snake][heads[snake]] : -1;
+	}
+
+	public int getLength(int snake) {
+		return lengths[snake];
+	}
+
+	public int getDirection(int snake) {
+		return directions[snake];
+	}
+
+	public int getCell(int cell) {
+		return board[cell];
+	}
+
+	public int getFruit(int fruit) {
+		return fruits[fruit];
+	}
+
+	public int getFruitCount() {
+		return fruits.length;
+	}
+
+	public long getMoves() {
+		return moves;
+	}
+
+	public long getDeaths() {
+		return deaths;
+	}
+
+	public long getEaten() {
+		return eaten;
+	}
+
+	/**
+	 * Next value of the snake's own stream, for policies that need randomness
+	 * without giving up reproducibility.
+	 */
+	public long nextRandom(int snake) {
+		return SnakeRules.mix(randoms[snake] += 0x9E3779B97F4A7C15L);
+	}
+
+	public int step(int cell, int dir) {
+		return SnakeRules.step(cell, dir, cols, rows);
+	}
+
+	public int distance(int a, int b) {
+		return SnakeRules.distance(a, b, cols, rows);
+	}
+
+	public long checksum() {
+		long hash = 0;
+		for (int i = 0; i < board.length; i++) {
+			hash = hash * 31 + board[i];
+		}
+		return hash;
+	}
+
+	private void spawnSnake(int snake) {
+		int cell = randomEmptyCell();
+		if (cell >= 0) {
+			heads[snake] = 0;
+			lengths[snake] = 1;
+			bodies[snake][0] = cell;
+			board[cell] = snake + 1;
+		}
+	}
+
+	private void spawnFruit(int fruit) {
+		int cell = randomEmptyCell();
+		if (cell >= 0) {
+			fruits[fruit] = cell;
+			board[cell] = -(fruit + 1);
+		}
+	}
+
+	// sampled rather than indexed, as an arena board is meant to be mostly empty; -1 after too many misses
+	private int randomEmptyCell() {
+		for (int i = 0; i < SPAWN_TRIES; i++) {
+			int cell = (int) ((SnakeRules.mix(random += 0x9E3779B97F4A7C15L) >>> 1) % board.length);
+			if (board[cell] == EMPTY) {
+				return cell;
+			}
+		}
+		return -1;
+	}
+
+	private void forEachSnake(IntConsumer action) {
+		pool.invoke(new Range(action, 0, policies.length));
+	}
+
+	private static final class Range extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final IntConsumer action;
+
+		private final int from;
+
+		private final int to;
+
+		Range(IntConsumer action, int from, int to) {
+			this.action = action;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= GRAIN) {
+				for (int i = from; i < to; i++) {
+					action.accept(i);
+				}
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Range(action, from, middle), new Range(action, middle, to));
+			}
+		}
+
+	}
+
+	public static void main(String[] args) {
+		int cols = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int rows = args.length > 1 ? Integer.parseInt(args[1]) : cols;
+		int snakes = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		int ticks = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+		String mode = args.length > 4 ? args[4] : "mixed";
+		int threads = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+		long seed = args.length > 6 ? Long.parseLong(args[6]) : 1L;
+
+		Policy[] policies = new Policy[snakes];
+		for (int i = 0; i < snakes; i++) {
+			if (mode.equals("greedy")) {
+				policies[i] = GREEDY;
+			} else if (mode.equals("random")) {
+				policies[i] = RANDOM;
+			} else if (mode.equals("mixed")) {
+				policies[i] = i % 2 == 0 ? GREEDY : RANDOM;
+			} else {
+				throw new IllegalArgumentException("unknown policy " + mode);
+			}
+		}
+
+		SnakeArena arena = new SnakeArena(cols, rows, policies, snakes / 2, threads, seed);
+		long start = System.nanoTime();
+		for (int t = 0; t < ticks; t++) {
+			arena.tick();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		arena.shutdown();
+
+		System.out.printf("%d snakes on %d x %d, %d threads: %d ticks in %.2f s, %.0f ticks/s, %.0f moves/s%n", snakes,
+				cols, rows, threads, ticks, seconds, ticks / seconds, arena.getMoves() / seconds);
+		System.out.printf("%d fruit eaten, %d deaths, board checksum %016x%n", arena.getEaten(), arena.getDeaths(),
+				arena.checksum());
+	}
+
+}
+
+/**
+ * Many independent Snake games stepped together, for training agents. Each
+ * move is played by SnakeRules, as in SnakeGame, and a turn straight back is
+ * refused as the game refuses it. The state is kept as struct-of-arrays, with
+ * one flat array per field across all environments. The board of every
+ * environment lives in the observation buffer supplied by the caller, one
+ * SnakeRules tile code per cell. Each step edits only the cells that
+ * changed, so observations are never copied. An environment ends when the
+ * snake dies, fills the board, or goes a whole board's worth of moves
+ * without eating. It then restarts in place within the same step.
+ */
+class SnakeBatch {
+
+	private final int envs;
+
+	private final int cols;
+
+	private final int rows;
+
+	private final int cells;
+
+	// envs x cells blocks, each environment at offset env * cells
+	private final byte[] tiles;
+
+	private final int[] snake;
+
+	private final int[] free;
+
+	private final int[] freeIndex;
+
+	// one entry per environment
+	private final int[] snakeHead;
+
+	private final int[] snakeLength;
+
+	private final int[] freeCount;
+
+	private final byte[] direction;
+
+	private final int[] score;
+
+	private final int[] nextFruitScore;
+
+	private final int[] stall;
+
+	private final long[] random;
+
+	SnakeBatch(int envs, int cols, int rows, byte[] observations, long seed) {
+		if (cols < 2 || rows < 2 || (long) envs * cols * rows > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException(envs + " boards of " + cols + " x " + rows);
+		}
+		if (observations.length < envs * cols * rows) {
+			throw new IllegalArgumentException("observation buffer holds " + observations.length + " cells, not "
+					+ envs * cols * rows);
+		}
+		this.envs = envs;
+		this.cols = cols;
+		this.rows = rows;
+		this.cells = cols * rows;
+		this.tiles = observations;
+		this.snake = new int[envs * cells];
+		this.free = new int[envs * cells];
+		this.freeIndex = new int[envs * cells];
+		this.snakeHead = new int[envs];
+		this.snakeLength = new int[envs];
+		this.freeCount = new int[envs];
+		this.direction = new byte[envs];
+		this.score = new int[envs];
+		this.nextFruitScore = new int[envs];
+		this.stall = new int[envs];
+		this.random = new long[envs];
+		for (int env = 0; env < envs; env++) {
+			random[env] = SnakeRules.mix(seed + env);
+			reset(env);
+		}
+	}
+
+	/**
+	 * Applies one action per environment, a Direction ordinal. Rewards receive
+	 * the points scored by the move, and dones mark environments that ended and
+	 * have already been reset, so their observation is the first of a new game.
+	 */
+	public void step(int[] actions, float[] rewards, boolean[] dones) {
+		for (int env = 0; env < envs; env++) {
+			int points = step(env, actions[env]);
+			rewards[env] = points < 0 ? 0 : points;
+			dones[env] = points < 0;
+			if (points < 0) {
+				reset(env);
+			}
+		}
+	}
+
+	/**
+	 * Returns the points scored by the move, or -1 when the game is over.
+	 */
+	private int step(int env, int action) {
+		// the game ignores a turn straight back into the neck, so the batch does too
+		if (action != ((direction[env] + 2) & 3)) {
+			direction[env] = (byte) action;
+		}
+
+		int base = env * cells;
+		int ring = snakeHead[env];
+		int head = snake[base + ring];
+		int next = SnakeRules.step(head, direction[env], cols, rows);
+
+		byte old = tiles[base + next];
+		if (SnakeRules.tailLeaves(old, snakeLength[env])) {
+			int tail = snake[base + (ring + snakeLength[env] - 1) % cells];
+			snakeLength[env]--;
+			set(env, tail, SnakeRules.EMPTY);
+			old = tiles[base + next];
+		}
+		if (SnakeRules.isCrash(old)) {
+			return -1;
+		}
+
+		set(env, head, SnakeRules.BODY);
+		ring = (ring == 0 ? cells : ring) - 1;
+		snakeHead[env] = ring;
+		snake[base + ring] = next;
+		snakeLength[env]++;
+		set(env, next, SnakeRules.HEAD);
+
+		if (old == SnakeRules.FRUIT) {
+			int points = nextFruitScore[env];
+			score[env] += points;
+			stall[env] = 0;
+			return spawnFruit(env) ? points : -1;
+		}
+		nextFruitScore[env] = SnakeRules.decay(nextFruitScore[env]);
+		return ++stall[env] < cells ? 0 : -1;
+	}
+
+	public void reset() {
+		for (int env = 0; env < envs; env++) {
+			reset(env);
+		}
+	}
+
+	private void reset(int env) {
+		int base = env * cells;
+		for (int i = 0; i < cells; i++) {
+			tiles[base + i] = SnakeRules.EMPTY;
+			free[base + i] = i;
+			freeIndex[base + i] = i;
+		}
+		freeCount[env] = cells;
+
+		int start = (rows / 2) * cols + cols / 2;
+		snakeHead[env] = 0;
+		snakeLength[env] = 1;
+		snake[base] = start;
+		set(env, start, SnakeRules.HEAD);
+		direction[env] = (byte) SnakeGame.Direction.North.ordinal();
+		score[env] = 0;
+		stall[env] = 0;
+		spawnFruit(env);
+	}
+
+	private boolean spawnFruit(int env) {
+		nextFruitScore[env] = SnakeRules.FRUIT_SCORE;
+		int count = freeCount[env];
+		if (count == 0) {
+			return false;
+		}
+		long bits = SnakeRules.mix(random[env] += 0x9E3779B97F4A7C15L) >>> 32;
+		set(env, free[env * cells + (int) ((bits * count) >>> 32)], SnakeRules.FRUIT);
+		return true;
+	}
+
+	private void set(int env, int cell, byte type) {
+		freeCount[env] = SnakeRules.set(tiles, free, freeIndex, env * cells, freeCount[env], cell, type);
+	}
+
+	public int getScore(int env) {
+		return score[env];
+	}
+
+	public int getLength(int env) {
+		return snakeLength[env];
+	}
+
+	/**
+	 * Throughput check with random actions.
+	 * Usage: java SnakeBatch [envs] [columns] [rows] [steps]
+	 */
+	public static void main(String[] args) {
+		int envs = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+		int cols = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int rows = args.length > 2 ? Integer.parseInt(args[2]) : cols;
+		int steps = args.length > 3 ? Integer.parseInt(args[3]) : 2000;
+
+		byte[] observations = new byte[envs * cols * rows];
+		int[] actions = new int[envs];
+		float[] rewards = new float[envs];
+		boolean[] dones = new boolean[envs];
+		SnakeBatch batch = new SnakeBatch(envs, cols, rows, observations, 1L);
+
+		long bits = 1L;
+		long episodes = 0;
+		double reward = 0;
+		long start = System.nanoTime();
+		for (int t = 0; t < steps; t++) {
+			for (int env = 0; env < envs; env++) {
+				bits = SnakeRules.mix(bits + 0x9E3779B97F4A7C15L);
+				actions[env] = (int) (bits & 3);
+			}
+			batch.step(actions, rewards, dones);
+			for (int env = 0; env < envs; env++) {
+				reward += rewards[env];
+				if (dones[env]) {
+					episodes++;
+				}
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%d envs of %d x %d: %.1fM env steps/s, %d episodes, %.1f points per episode%n", envs, cols,
+				rows, (double) envs * steps / seconds / 1e6, episodes, reward / Math.max(1, episodes));
+	}
+
+}
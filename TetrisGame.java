@@ -5,7 +5,17 @@ import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
 
 
 import javax.swing.JPanel;
@@ -19,23 +29,18 @@ public class TetrisGame extends JFrame {
 	
     private static final long serialVersionUID = 12345L;
     private static final long FRAME_TIME = 1000L / 50L;
-    private static final int TYPE_COUNT = TileType.values().length;
+    private static final float SOFT_DROP_SPEED = 25.0f;
     private BoardPanel board;
     private SidePanel side;
     private boolean isPaused;
     private boolean isNewGame;
-    private boolean isGameOver;
-    private int level;
-    private int score;
-    private Random random;
+    private TetrisCore core;
     private Clock logicTimer;
-    private TileType currentType;
-    private TileType nextType;
-    private int currentCol;
-    private int currentRow;
-    private int currentRotation;
     private int dropCooldown;
-    private float gameSpeed;
+    private volatile boolean isAutoplay;
+    private TetrisAutoplayer autoplayer;
+    private int planLength;
+    private int planStep;
 
     private TetrisGame() {
         super("Adarsh's Tetris");
@@ -43,6 +48,7 @@ public class TetrisGame extends JFrame {
         setDefaultCloseOperation(EXIT_ON_CLOSE);
         setResizable(false);
         
+        this.core = new TetrisCore(new TetrisBoard(BoardPanel.COL_COUNT, BoardPanel.ROW_COUNT), new Random());
         this.board = new BoardPanel(this);
         this.side = new SidePanel(this);
         
@@ -57,47 +63,48 @@ public class TetrisGame extends JFrame {
                 switch(e.getKeyCode()) {
                 
                 case KeyEvent.VK_S:
-                    if(!isPaused && dropCooldown == 0) {
-                        logicTimer.setCyclesPerSecond(25.0f);
-                    }
+                    softDrop();
                     break;
                     
                 case KeyEvent.VK_A:
-                    if(!isPaused && board.isValidAndEmpty(currentType, currentCol - 1, currentRow, currentRotation)) {
-                        currentCol--;
-                    }
+                    shiftPiece(-1);
                     break;
                     
                 case KeyEvent.VK_D:
-                    if(!isPaused && board.isValidAndEmpty(currentType, currentCol + 1, currentRow, currentRotation)) {
-                        currentCol++;
-                    }
+                    shiftPiece(1);
                     break;
                     
                 case KeyEvent.VK_Q:
                     if(!isPaused) {
-                        rotatePiece((currentRotation == 0) ? 3 : currentRotation - 1);
+                        rotatePiece((getPieceRotation() == 0) ? 3 : getPieceRotation() - 1);
                     }
                     break;
                 
                 case KeyEvent.VK_E:
                     if(!isPaused) {
-                        rotatePiece((currentRotation == 3) ? 0 : currentRotation + 1);
+                        rotatePiece((getPieceRotation() == 3) ? 0 : getPieceRotation() + 1);
                     }
                     break;
                     
                 case KeyEvent.VK_P:
-                    if(!isGameOver && !isNewGame) {
+                    if(!isGameOver() && !isNewGame) {
                         isPaused = !isPaused;
                         logicTimer.setPaused(isPaused);
                     }
                     break;
                 
                 case KeyEvent.VK_ENTER:
-                    if(isGameOver || isNewGame) {
+                    if(isGameOver() || isNewGame) {
                         resetGame();
                     }
                     break;
+                    
+                case KeyEvent.VK_SPACE:
+                    isAutoplay = !isAutoplay;
+                    if(!isAutoplay && !isPaused) {
+                        logicTimer.setCyclesPerSecond(core.getGameSpeed());
+                    }
+                    break;
                 
                 }
             }
@@ -108,7 +115,7 @@ public class TetrisGame extends JFrame {
                 switch(e.getKeyCode()) {
                 
                 case KeyEvent.VK_S:
-                    logicTimer.setCyclesPerSecond(gameSpeed);
+                    logicTimer.setCyclesPerSecond(core.getGameSpeed());
                     logicTimer.reset();
                     break;
                 }
@@ -122,19 +129,22 @@ public class TetrisGame extends JFrame {
         setVisible(true);
     }
     
-    private void startGame() {
-        this.random = new Random();
+    private void startGame(double[] weights) {
         this.isNewGame = true;
-        this.gameSpeed = 1.0f;
         
-        this.logicTimer = new Clock(gameSpeed);
+        this.logicTimer = new Clock(1.0f);
         logicTimer.setPaused(true);
+        this.autoplayer = new TetrisAutoplayer(BoardPanel.COL_COUNT, BoardPanel.ROW_COUNT, weights, new ForkJoinPool());
         
         while(true) {
             long start = System.nanoTime();
             
             logicTimer.update();
             
+            if(isAutoplay && !isPaused && !isGameOver() && !isNewGame) {
+                autoplay();
+            }
+            
             if(logicTimer.hasElapsedCycle()) {
                 updateGame();
             }
@@ -157,25 +167,16 @@ public class TetrisGame extends JFrame {
     }
     
     private void updateGame() {
-        if(board.isValidAndEmpty(currentType, currentCol, currentRow + 1, currentRotation)) {
-            currentRow++;
-        } else {
-            board.addPiece(currentType, currentCol, currentRow, currentRotation);
-            
-            int cleared = board.checkLines();
-            if(cleared > 0) {
-                score += 50 << cleared;
-            }
-            
-            gameSpeed += 0.035f;
-            logicTimer.setCyclesPerSecond(gameSpeed);
+        if(core.updateGame()) {
+            logicTimer.setCyclesPerSecond(core.getGameSpeed());
             logicTimer.reset();
             
             dropCooldown = 25;
+            planLength = -1;
             
-            level = (int)(gameSpeed * 1.70f);
-            
-            spawnPiece();
+            if(core.isGameOver()) {
+                logicTimer.setPaused(true);
+            }
         }		
     }
     
@@ -185,65 +186,86 @@ public class TetrisGame extends JFrame {
     }
     
     private void resetGame() {
-        this.level = 1;
-        this.score = 0;
-        this.gameSpeed = 1.0f;
-        this.nextType = TileType.values()[random.nextInt(TYPE_COUNT)];
         this.isNewGame = false;
-        this.isGameOver = false;		
-        board.clear();
+        this.planLength = -1;
+        core.resetGame();
         logicTimer.reset();
-        logicTimer.setCyclesPerSecond(gameSpeed);
-        spawnPiece();
-    }
-        
-    private void spawnPiece() {
-        this.currentType = nextType;
-        this.currentCol = currentType.getSpawnColumn();
-        this.currentRow = currentType.getSpawnRow();
-        this.currentRotation = 0;
-        this.nextType = TileType.values()[random.nextInt(TYPE_COUNT)];
-        
-        if(!board.isValidAndEmpty(currentType, currentCol, currentRow, currentRotation)) {
-            this.isGameOver = true;
-            logicTimer.setPaused(true);
-        }		
+        logicTimer.setCyclesPerSecond(core.getGameSpeed());
     }
 
-    private void rotatePiece(int newRotation) {
-        int newColumn = currentCol;
-        int newRow = currentRow;
-        
-        int left = currentType.getLeftInset(newRotation);
-        int right = currentType.getRightInset(newRotation);
-        int top = currentType.getTopInset(newRotation);
-        int bottom = currentType.getBottomInset(newRotation);
+    /**
+     * Takes the autoplayer's next inputs for the current piece, planning a new
+     * route when there is none or the piece has left it. Sideways moves and
+     * turns are made at once. Downward steps are left to gravity, sped up by
+     * a soft drop, and this runs every frame ahead of the gravity step, so a
+     * piece waiting to slide under an overhang never drops past its row.
+     */
+    private void autoplay() {
+        while(planStep < planLength && autoplayer.getMove(planStep) == TetrisAutoplayer.DOWN
+                && getPieceRow() == autoplayer.getRow(planStep + 1)) {
+            planStep++;
+        }
         
-        if(currentCol < -left) {
-            newColumn -= currentCol - left;
-        } else if(currentCol + currentType.getDimension() - right >= BoardPanel.COL_COUNT) {
-            newColumn -= (currentCol + currentType.getDimension() - right) - BoardPanel.COL_COUNT + 1;
+        if(planLength < 0 || !isOnPlan()) {
+            planLength = autoplayer.plan(core.getBoard(), getPieceType(), getNextPieceType(), getPieceCol(), getPieceRow(), getPieceRotation());
+            planStep = 0;
+            if(planLength < 0) {
+                return;
+            }
         }
         
-        if(currentRow < -top) {
-            newRow -= currentRow - top;
-        } else if(currentRow + currentType.getDimension() - bottom >= BoardPanel.ROW_COUNT) {
-            newRow -= (currentRow + currentType.getDimension() - bottom) - BoardPanel.ROW_COUNT + 1;
+        while(planStep < planLength && autoplayer.getMove(planStep) != TetrisAutoplayer.DOWN) {
+            switch(autoplayer.getMove(planStep++)) {
+            case TetrisAutoplayer.LEFT:
+                shiftPiece(-1);
+                break;
+            case TetrisAutoplayer.RIGHT:
+                shiftPiece(1);
+                break;
+            case TetrisAutoplayer.CLOCKWISE:
+                rotatePiece((getPieceRotation() == 3) ? 0 : getPieceRotation() + 1);
+                break;
+            case TetrisAutoplayer.ANTICLOCKWISE:
+                rotatePiece((getPieceRotation() == 0) ? 3 : getPieceRotation() - 1);
+                break;
+            }
+            if(!isOnPlan()) {
+                return;
+            }
         }
         
-        if(board.isValidAndEmpty(currentType, newColumn, newRow, newRotation)) {
-            currentRotation = newRotation;
-            currentRow = newRow;
-            currentCol = newColumn;
+        if(core.getGameSpeed() < SOFT_DROP_SPEED) {
+            softDrop();
+        }
+    }
+    
+    private boolean isOnPlan() {
+        return getPieceCol() == autoplayer.getColumn(planStep) && getPieceRow() == autoplayer.getRow(planStep)
+                && getPieceRotation() == autoplayer.getRotation(planStep);
+    }
+    
+    private void shiftPiece(int offset) {
+        if(!isPaused) {
+            core.shiftPiece(offset);
         }
     }
     
+    private void softDrop() {
+        if(!isPaused && dropCooldown == 0) {
+            logicTimer.setCyclesPerSecond(SOFT_DROP_SPEED);
+        }
+    }
+
+    private void rotatePiece(int newRotation) {
+        core.rotatePiece(newRotation);
+    }
+    
     public boolean isPaused() {
         return isPaused;
     }
     
     public boolean isGameOver() {
-        return isGameOver;
+        return core.isGameOver();
     }
     
     public boolean isNewGame() {
@@ -251,36 +273,41 @@ public class TetrisGame extends JFrame {
     }
     
     public int getScore() {
-        return score;
+        return core.getScore();
     }
     
     public int getLevel() {
-        return level;
+        return core.getLevel();
     }
     
     public TileType getPieceType() {
-        return currentType;
+        return core.getPieceType();
     }
     
     public TileType getNextPieceType() {
-        return nextType;
+        return core.getNextPieceType();
     }
     
     public int getPieceCol() {
-        return currentCol;
+        return core.getPieceCol();
     }
     
     public int getPieceRow() {
-        return currentRow;
+        return core.getPieceRow();
     }
     
     public int getPieceRotation() {
-        return currentRotation;
+        return core.getPieceRotation();
+    }
+    
+    public boolean isAutoplay() {
+        return isAutoplay;
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        double[] weights = args.length > 0 ? TetrisAutoplayer.readWeights(Paths.get(args[0])) : TetrisAutoplayer.getDefaultWeights();
         TetrisGame TetrisGame = new TetrisGame();
-        TetrisGame.startGame();
+        TetrisGame.startGame(weights);
     }
 
     public class BoardPanel extends JPanel {
@@ -302,90 +329,33 @@ public class TetrisGame extends JFrame {
         private static final Font LARGE_FONT = new Font("Tahoma", Font.BOLD, 16);
         private static final Font SMALL_FONT = new Font("Tahoma", Font.BOLD, 12);
         private TetrisGame TetrisGame;
-        private TileType[][] tiles;
+        private TetrisBoard board;
         public BoardPanel(TetrisGame TetrisGame) {
             this.TetrisGame = TetrisGame;
-            this.tiles = new TileType[ROW_COUNT][COL_COUNT];
+            this.board = TetrisGame.core.getBoard();
             
             setPreferredSize(new Dimension(PANEL_WIDTH, PANEL_HEIGHT));
             setBackground(Color.BLACK);
         }
         
         public void clear() {
-            for(int i = 0; i < ROW_COUNT; i++) {
-                for(int j = 0; j < COL_COUNT; j++) {
-                    tiles[i][j] = null;
-                }
-            }
+            board.clear();
         }
         
         public boolean isValidAndEmpty(TileType type, int x, int y, int rotation) {
-                    
-            if(x < -type.getLeftInset(rotation) || x + type.getDimension() - type.getRightInset(rotation) >= COL_COUNT) {
-                return false;
-            }
-            
-            if(y < -type.getTopInset(rotation) || y + type.getDimension() - type.getBottomInset(rotation) >= ROW_COUNT) {
-                return false;
-            }
-            
-            for(int col = 0; col < type.getDimension(); col++) {
-                for(int row = 0; row < type.getDimension(); row++) {
-                    if(type.isTile(col, row, rotation) && isOccupied(x + col, y + row)) {
-                        return false;
-                    }
-                }
-            }
-            return true;
+            return board.isValidAndEmpty(type, x, y, rotation);
         }
         
         public void addPiece(TileType type, int x, int y, int rotation) {
-            for(int col = 0; col < type.getDimension(); col++) {
-                for(int row = 0; row < type.getDimension(); row++) {
-                    if(type.isTile(col, row, rotation)) {
-                        setTile(col + x, row + y, type);
-                    }
-                }
-            }
+            board.addPiece(type, x, y, rotation);
         }
         
         public int checkLines() {
-            int completedLines = 0;
-            
-            for(int row = 0; row < ROW_COUNT; row++) {
-                if(checkLine(row)) {
-                    completedLines++;
-                }
-            }
-            return completedLines;
-        }
-                
-        private boolean checkLine(int line) {
-            for(int col = 0; col < COL_COUNT; col++) {
-                if(!isOccupied(col, line)) {
-                    return false;
-                }
-            }
-            
-            for(int row = line - 1; row >= 0; row--) {
-                for(int col = 0; col < COL_COUNT; col++) {
-                    setTile(col, row + 1, getTile(col, row));
-                }
-            }
-            return true;
+            return board.checkLines();
         }
         
-        
-        private boolean isOccupied(int x, int y) {
-            return tiles[y][x] != null;
-        }
-        
-        private void setTile(int  x, int y, TileType type) {
-            tiles[y][x] = type;
-        }
-            
         private TileType getTile(int x, int y) {
-            return tiles[y][x];
+            return board.getTile(x, y);
         }
         
         @Override
@@ -434,22 +404,13 @@ public class TetrisGame extends JFrame {
                 
                 Color base = type.getBaseColor();
                 base = new Color(base.getRed(), base.getGreen(), base.getBlue(), 20);
-                for(int lowest = pieceRow; lowest < ROW_COUNT; lowest++) {
-                    if(isValidAndEmpty(type, pieceCol, lowest, rotation)) {					
-                        continue;
-                    }
-                    
-                    lowest--;
-                    
-                    for(int col = 0; col < type.getDimension(); col++) {
-                        for(int row = 0; row < type.getDimension(); row++) {
-                            if(lowest + row >= 2 && type.isTile(col, row, rotation)) {
-                                drawTile(base, base.brighter(), base.darker(), (pieceCol + col) * TILE_SIZE, (lowest + row - HIDDEN_ROW_COUNT) * TILE_SIZE, g);
-                            }
+                int lowest = pieceRow + board.getDropDistance(type, pieceCol, pieceRow, rotation);
+                for(int col = 0; col < type.getDimension(); col++) {
+                    for(int row = 0; row < type.getDimension(); row++) {
+                        if(lowest + row >= 2 && type.isTile(col, row, rotation)) {
+                            drawTile(base, base.brighter(), base.darker(), (pieceCol + col) * TILE_SIZE, (lowest + row - HIDDEN_ROW_COUNT) * TILE_SIZE, g);
                         }
                     }
-                    
-                    break;
                 }
                 
                 g.setColor(Color.DARK_GRAY);
@@ -596,6 +557,7 @@ public class TetrisGame extends JFrame {
             g.drawString("E - Rotate Clockwise", LARGE_INSET, offset += TEXT_STRIDE);
             g.drawString("S - Drop", LARGE_INSET, offset += TEXT_STRIDE);
             g.drawString("P - Pause Game", LARGE_INSET, offset += TEXT_STRIDE);
+            g.drawString("Space - AI Player" + (TetrisGame.isAutoplay() ? " (On)" : ""), LARGE_INSET, offset += TEXT_STRIDE);
 
             g.drawString("Designed By", getWidth() / 2 - g.getFontMetrics().stringWidth("Designed By") / 2,
             offset += 2*TEXT_STRIDE);
@@ -814,6 +776,12 @@ public class TetrisGame extends JFrame {
         private int rows;
         private int cols;
         private boolean[][] tiles;
+        private int[][] masks;
+        private int[][] columnBottoms;
+        private int[] leftInsets;
+        private int[] rightInsets;
+        private int[] topInsets;
+        private int[] bottomInsets;
         
         private TileType(Color color, int dimension, int cols, int rows, boolean[][] tiles) {
             this.baseColor = color;
@@ -824,6 +792,33 @@ public class TetrisGame extends JFrame {
             this.cols = cols;
             this.rows = rows;
             
+            this.masks = new int[tiles.length][dimension];
+            this.columnBottoms = new int[tiles.length][dimension];
+            this.leftInsets = new int[tiles.length];
+            this.rightInsets = new int[tiles.length];
+            this.topInsets = new int[tiles.length];
+            this.bottomInsets = new int[tiles.length];
+            for(int rotation = 0; rotation < tiles.length; rotation++) {
+                int left = dimension, right = -1, top = dimension, bottom = -1;
+                Arrays.fill(columnBottoms[rotation], -1);
+                for(int y = 0; y < dimension; y++) {
+                    for(int x = 0; x < dimension; x++) {
+                        if(isTile(x, y, rotation)) {
+                            masks[rotation][y] |= 1 << x;
+                            columnBottoms[rotation][x] = y;
+                            left = Math.min(left, x);
+                            right = Math.max(right, x);
+                            top = Math.min(top, y);
+                            bottom = Math.max(bottom, y);
+                        }
+                    }
+                }
+                leftInsets[rotation] = left;
+                rightInsets[rotation] = dimension - right;
+                topInsets[rotation] = top;
+                bottomInsets[rotation] = dimension - bottom;
+            }
+            
             this.spawnCol = 5 - (dimension >> 1);
             this.spawnRow = getTopInset(0);
         }
@@ -864,51 +859,1139 @@ public class TetrisGame extends JFrame {
             return tiles[rotation][y * dimension + x];
         }
         
+        /**
+         * Returns one bitmask per row of the piece's bounding square in the given
+         * rotation, with bit x set when column x of that row holds a tile.
+         */
+        public int[] getRowMasks(int rotation) {
+            return masks[rotation];
+        }
+        
+        /**
+         * Returns the lowest row of the piece's bounding square holding a tile
+         * in column x for the given rotation, or -1 if the column is empty.
+         */
+        public int getColumnBottom(int rotation, int x) {
+            return columnBottoms[rotation][x];
+        }
+        
         public int getLeftInset(int rotation) {
-            for(int x = 0; x < dimension; x++) {
-                for(int y = 0; y < dimension; y++) {
-                    if(isTile(x, y, rotation)) {
-                        return x;
-                    }
-                }
-            }
-            return -1;
+            return leftInsets[rotation];
         }
         
         public int getRightInset(int rotation) {
-            for(int x = dimension - 1; x >= 0; x--) {
-                for(int y = 0; y < dimension; y++) {
-                    if(isTile(x, y, rotation)) {
-                        return dimension - x;
-                    }
-                }
-            }
-            return -1;
+            return rightInsets[rotation];
         }
         
         public int getTopInset(int rotation) {
-            for(int y = 0; y < dimension; y++) {
-                for(int x = 0; x < dimension; x++) {
-                    if(isTile(x, y, rotation)) {
-                        return y;
-                    }
-                }
-            }
-            return -1;
+            return topInsets[rotation];
         }
         
         public int getBottomInset(int rotation) {
-            for(int y = dimension - 1; y >= 0; y--) {
-                for(int x = 0; x < dimension; x++) {
-                    if(isTile(x, y, rotation)) {
-                        return dimension - y;
+            return bottomInsets[rotation];
+        }
+        
+    }
+
+
+}
+
+/**
+ * The rules of a Tetris game without Swing or timing: the falling piece, the
+ * piece sequence, scoring and speed. TetrisGame drives one from its game loop
+ * and keyboard, and TetrisTrainer plays many of them headless.
+ */
+class TetrisCore {
+
+    private static final TetrisGame.TileType[] TYPES = TetrisGame.TileType.values();
+    private final TetrisBoard board;
+    private final Random random;
+    private boolean isGameOver;
+    private int level;
+    private int score;
+    private float gameSpeed;
+    private TetrisGame.TileType currentType;
+    private TetrisGame.TileType nextType;
+    private int currentCol;
+    private int currentRow;
+    private int currentRotation;
+
+    public TetrisCore(TetrisBoard board, Random random) {
+        this.board = board;
+        this.random = random;
+        this.gameSpeed = 1.0f;
+    }
+
+    /**
+     * Moves the piece down a row, or when it cannot move locks it in place,
+     * clears lines, speeds the game up and spawns the next piece. Returns
+     * whether the piece was locked.
+     */
+    public boolean updateGame() {
+        if(board.isValidAndEmpty(currentType, currentCol, currentRow + 1, currentRotation)) {
+            currentRow++;
+            return false;
+        }
+
+        board.addPiece(currentType, currentCol, currentRow, currentRotation);
+
+        int cleared = board.checkLines();
+        if(cleared > 0) {
+            score += 50 << cleared;
+        }
+
+        gameSpeed += 0.035f;
+        level = (int)(gameSpeed * 1.70f);
+
+        spawnPiece();
+        return true;
+    }
+
+    public void resetGame() {
+        this.level = 1;
+        this.score = 0;
+        this.gameSpeed = 1.0f;
+        this.nextType = TYPES[random.nextInt(TYPES.length)];
+        this.isGameOver = false;
+        board.clear();
+        spawnPiece();
+    }
+
+    public void spawnPiece() {
+        this.currentType = nextType;
+        this.currentCol = currentType.getSpawnColumn();
+        this.currentRow = currentType.getSpawnRow();
+        this.currentRotation = 0;
+        this.nextType = TYPES[random.nextInt(TYPES.length)];
+
+        if(!board.isValidAndEmpty(currentType, currentCol, currentRow, currentRotation)) {
+            this.isGameOver = true;
+        }
+    }
+
+    public boolean shiftPiece(int offset) {
+        if(board.isValidAndEmpty(currentType, currentCol + offset, currentRow, currentRotation)) {
+            currentCol += offset;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean rotatePiece(int newRotation) {
+        int newColumn = board.kickColumn(currentType, currentCol, newRotation);
+        int newRow = board.kickRow(currentType, currentRow, newRotation);
+
+        if(board.isValidAndEmpty(currentType, newColumn, newRow, newRotation)) {
+            currentRotation = newRotation;
+            currentRow = newRow;
+            currentCol = newColumn;
+            return true;
+        }
+        return false;
+    }
+
+    public TetrisBoard getBoard() {
+        return board;
+    }
+
+    public boolean isGameOver() {
+        return isGameOver;
+    }
+
+    public int getScore() {
+        return score;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public float getGameSpeed() {
+        return gameSpeed;
+    }
+
+    public TetrisGame.TileType getPieceType() {
+        return currentType;
+    }
+
+    public TetrisGame.TileType getNextPieceType() {
+        return nextType;
+    }
+
+    public int getPieceCol() {
+        return currentCol;
+    }
+
+    public int getPieceRow() {
+        return currentRow;
+    }
+
+    public int getPieceRotation() {
+        return currentRotation;
+    }
+
+}
+
+/**
+ * The Tetris playfield without any Swing state. Occupancy is kept as one
+ * bitmask per row, bit x standing for column x, so testing a piece costs one
+ * AND per piece row. The tile types are kept alongside only for rendering,
+ * and a board built without them is a cheap scratch copy for searches. Column
+ * heights and the filled cell count are kept up to date as pieces land and
+ * lines clear, so the features an evaluator needs are read rather than
+ * rescanned.
+ */
+class TetrisBoard {
+
+    private final int cols;
+    private final int rows;
+    private final int fullRow;
+    private final int[] rowMasks;
+    private final int[] heights;
+    private int aggregateHeight;
+    private int filledCells;
+    private final TetrisGame.TileType[][] tiles;
+    private final TetrisGame.TileType[][] spareRows;
+    private final int[] clearedRows;
+    private int clearedCount;
+
+    public TetrisBoard(int cols, int rows) {
+        this(cols, rows, true);
+    }
+
+    public TetrisBoard(int cols, int rows, boolean keepTiles) {
+        if(cols < 4 || cols > 31 || rows < 4) {
+            throw new IllegalArgumentException("board must be 4 to 31 columns wide and at least 4 rows tall");
+        }
+        this.cols = cols;
+        this.rows = rows;
+        this.fullRow = (1 << cols) - 1;
+        this.rowMasks = new int[rows];
+        this.heights = new int[cols];
+        this.tiles = keepTiles ? new TetrisGame.TileType[rows][cols] : null;
+        this.spareRows = keepTiles ? new TetrisGame.TileType[rows][] : null;
+        this.clearedRows = new int[rows];
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public void clear() {
+        for(int i = 0; i < rows; i++) {
+            rowMasks[i] = 0;
+            if(tiles != null) {
+                Arrays.fill(tiles[i], null);
+            }
+        }
+        Arrays.fill(heights, 0);
+        aggregateHeight = 0;
+        filledCells = 0;
+    }
+
+    /**
+     * Makes this board a copy of another one of the same size. Tiles are only
+     * copied when both boards keep them.
+     */
+    public void copyFrom(TetrisBoard other) {
+        System.arraycopy(other.rowMasks, 0, rowMasks, 0, rows);
+        System.arraycopy(other.heights, 0, heights, 0, cols);
+        aggregateHeight = other.aggregateHeight;
+        filledCells = other.filledCells;
+        if(tiles != null && other.tiles != null) {
+            for(int i = 0; i < rows; i++) {
+                System.arraycopy(other.tiles[i], 0, tiles[i], 0, cols);
+            }
+        }
+    }
+
+    public boolean isValidAndEmpty(TetrisGame.TileType type, int x, int y, int rotation) {
+        int top = type.getTopInset(rotation);
+        int end = type.getDimension() - type.getBottomInset(rotation);
+
+        if(x < -type.getLeftInset(rotation) || x + type.getDimension() - type.getRightInset(rotation) >= cols) {
+            return false;
+        }
+
+        if(y < -top || y + end >= rows) {
+            return false;
+        }
+
+        int[] masks = type.getRowMasks(rotation);
+        for(int row = top; row <= end; row++) {
+            int mask = x >= 0 ? masks[row] << x : masks[row] >>> -x;
+            if((rowMasks[y + row] & mask) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void addPiece(TetrisGame.TileType type, int x, int y, int rotation) {
+        int[] masks = type.getRowMasks(rotation);
+        for(int row = 0; row < type.getDimension(); row++) {
+            int mask = x >= 0 ? masks[row] << x : masks[row] >>> -x;
+            if(mask == 0) {
+                continue;
+            }
+            rowMasks[y + row] |= mask;
+            filledCells += Integer.bitCount(mask);
+            int height = rows - y - row;
+            for(int col = Integer.numberOfTrailingZeros(mask); mask != 0; col = Integer.numberOfTrailingZeros(mask)) {
+                if(height > heights[col]) {
+                    aggregateHeight += height - heights[col];
+                    heights[col] = height;
+                }
+                if(tiles != null) {
+                    tiles[y + row][col] = type;
+                }
+                mask &= mask - 1;
+            }
+        }
+    }
+
+    /**
+     * Removes every full row in one bottom-up pass, moving each remaining row
+     * straight to its final place, and returns how many were removed. The
+     * tile rows are moved by reference, and the cleared ones are emptied and
+     * reused at the top.
+     */
+    public int checkLines() {
+        int write = rows - 1;
+        clearedCount = 0;
+
+        for(int row = rows - 1; row >= 0; row--) {
+            if(rowMasks[row] == fullRow) {
+                if(tiles != null) {
+                    spareRows[clearedCount] = tiles[row];
+                }
+                clearedRows[clearedCount++] = row;
+                continue;
+            }
+            if(write != row) {
+                rowMasks[write] = rowMasks[row];
+                if(tiles != null) {
+                    tiles[write] = tiles[row];
+                }
+            }
+            write--;
+        }
+
+        for(int row = 0; row < clearedCount; row++) {
+            rowMasks[row] = 0;
+            if(tiles != null) {
+                Arrays.fill(spareRows[row], null);
+                tiles[row] = spareRows[row];
+            }
+        }
+
+        // a full row spans every column, so each column loses exactly the
+        // cleared rows unless its top cell went with them, uncovering holes
+        if(clearedCount > 0) {
+            filledCells -= clearedCount * cols;
+            for(int col = 0; col < cols; col++) {
+                int height = heights[col] - clearedCount;
+                while(height > 0 && (rowMasks[rows - height] & (1 << col)) == 0) {
+                    height--;
+                }
+                aggregateHeight += height - heights[col];
+                heights[col] = height;
+            }
+        }
+        return clearedCount;
+    }
+
+    /**
+     * Returns how many rows the last call to checkLines removed.
+     */
+    public int getClearedCount() {
+        return clearedCount;
+    }
+
+    /**
+     * Returns the i-th row removed by the last call to checkLines, counting
+     * from the bottom up and numbered as it was before the clear.
+     */
+    public int getClearedRow(int i) {
+        if(i < 0 || i >= clearedCount) {
+            throw new IndexOutOfBoundsException("cleared row " + i + " of " + clearedCount);
+        }
+        return clearedRows[i];
+    }
+
+    /**
+     * Returns the column a piece at x moves to when turned to the given
+     * rotation, pushed back inside the walls if the new shape would stick out.
+     */
+    public int kickColumn(TetrisGame.TileType type, int x, int rotation) {
+        int left = type.getLeftInset(rotation);
+        int right = type.getRightInset(rotation);
+        int column = x;
+
+        if(x < -left) {
+            column -= x - left;
+        } else if(x + type.getDimension() - right >= cols) {
+            column -= (x + type.getDimension() - right) - cols + 1;
+        }
+        return column;
+    }
+
+    /**
+     * Returns the row a piece at y moves to when turned to the given rotation,
+     * pushed back inside the floor and ceiling if the new shape would stick out.
+     */
+    public int kickRow(TetrisGame.TileType type, int y, int rotation) {
+        int top = type.getTopInset(rotation);
+        int bottom = type.getBottomInset(rotation);
+        int row = y;
+
+        if(y < -top) {
+            row -= y - top;
+        } else if(y + type.getDimension() - bottom >= rows) {
+            row -= (y + type.getDimension() - bottom) - rows + 1;
+        }
+        return row;
+    }
+
+    /**
+     * Returns how many rows a piece can fall from where it is. While the piece
+     * is above the stack in each of its columns this is read off the height
+     * map with one step per column; a piece tucked under an overhang is tested
+     * row by row instead.
+     */
+    public int getDropDistance(TetrisGame.TileType type, int x, int y, int rotation) {
+        int distance = rows;
+        for(int col = type.getLeftInset(rotation); col <= type.getDimension() - type.getRightInset(rotation); col++) {
+            int bottom = type.getColumnBottom(rotation, col);
+            if(bottom < 0) {
+                continue;
+            }
+            int gap = rows - heights[x + col] - (y + bottom) - 1;
+            if(gap < 0) {
+                distance = 0;
+                while(isValidAndEmpty(type, x, y + distance + 1, rotation)) {
+                    distance++;
+                }
+                return distance;
+            }
+            distance = Math.min(distance, gap);
+        }
+        return distance;
+    }
+
+    public int getColumnHeight(int x) {
+        return heights[x];
+    }
+
+    public int getAggregateHeight() {
+        return aggregateHeight;
+    }
+
+    /**
+     * Returns the number of empty cells with a filled cell somewhere above
+     * them in the same column. Every filled cell lies at or below its column's
+     * top, so this is the summed height less the filled cells.
+     */
+    public int getHoles() {
+        return aggregateHeight - filledCells;
+    }
+
+    public int getRowFill(int y) {
+        return Integer.bitCount(rowMasks[y]);
+    }
+
+    public boolean isOccupied(int x, int y) {
+        return (rowMasks[y] & (1 << x)) != 0;
+    }
+
+    public int getRowMask(int y) {
+        return rowMasks[y];
+    }
+
+    public TetrisGame.TileType getTile(int x, int y) {
+        return tiles != null ? tiles[y][x] : null;
+    }
+
+}
+
+/**
+ * Decides where the current Tetris piece should go and which inputs take it
+ * there. A breadth-first search over column, row and rotation, using the same
+ * moves and wall kicks as a player, finds every resting place the piece can
+ * reach, including slides under overhangs. Each one is scored by searching the
+ * next piece's placements on the resulting board and keeping the best board
+ * under a weighted sum of features. Candidates are scored in parallel, each
+ * worker on its own scratch boards.
+ */
+class TetrisAutoplayer {
+
+    public static final int LEFT = 0;
+    public static final int RIGHT = 1;
+    public static final int CLOCKWISE = 2;
+    public static final int ANTICLOCKWISE = 3;
+    public static final int DOWN = 4;
+
+    // feature indices into the weights: summed column heights, lines cleared,
+    // empty cells under a filled one, summed height steps, summed well depths
+    public static final int HEIGHT = 0;
+    public static final int LINES = 1;
+    public static final int HOLES = 2;
+    public static final int BUMPINESS = 3;
+    public static final int WELLS = 4;
+    public static final int FEATURE_COUNT = 5;
+
+    private static final double[] DEFAULT_WEIGHTS = {-0.510066, 0.760666, -0.35663, -0.184483, -0.1};
+
+    // pieces may hang up to three cells past the left wall or the top
+    private static final int PAD = 4;
+    private static final int MOVE_COUNT = 5;
+    private static final int ROTATION_COUNT = 4;
+    private static final int GRAIN = 4;
+
+    // per type and rotation, the first rotation with the same shape, so that
+    // placements filling the same cells are only scored once
+    private static final int[][] SAME_SHAPE = new int[TetrisGame.TileType.values().length][ROTATION_COUNT];
+
+    static {
+        for(TetrisGame.TileType type : TetrisGame.TileType.values()) {
+            for(int rotation = 0; rotation < ROTATION_COUNT; rotation++) {
+                int same = 0;
+                while(!isSameShape(type, same, rotation)) {
+                    same++;
+                }
+                SAME_SHAPE[type.ordinal()][rotation] = same;
+            }
+        }
+    }
+
+    private final int cols;
+    private final int rows;
+    private final int width;
+    private final int height;
+    private final double[] weights;
+    private final ForkJoinPool pool;
+    private final Search root;
+    // second-ply scratch for scoring candidates: one per worker on a pool, a single one without
+    private final ThreadLocal<Search> searches;
+    private final Search search;
+    private final double[] scores;
+    private final int[] path;
+    private final int[] pathMoves;
+    private int pathLength;
+
+    private static boolean isSameShape(TetrisGame.TileType type, int first, int second) {
+        int[] a = type.getRowMasks(first);
+        int[] b = type.getRowMasks(second);
+        int height = type.getDimension() - type.getBottomInset(first) - type.getTopInset(first);
+        if(height != type.getDimension() - type.getBottomInset(second) - type.getTopInset(second)) {
+            return false;
+        }
+        for(int row = 0; row <= height; row++) {
+            if(a[type.getTopInset(first) + row] >>> type.getLeftInset(first) != b[type.getTopInset(second) + row] >>> type.getLeftInset(second)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static double[] getDefaultWeights() {
+        return DEFAULT_WEIGHTS.clone();
+    }
+
+    /**
+     * Reads weights written by writeWeights: one number per feature,
+     * separated by whitespace, where a # starts a comment running to the end
+     * of the line.
+     */
+    public static double[] readWeights(Path file) throws IOException {
+        double[] weights = new double[FEATURE_COUNT];
+        int count = 0;
+        for(String line : Files.readAllLines(file)) {
+            int comment = line.indexOf('#');
+            String values = (comment >= 0 ? line.substring(0, comment) : line).trim();
+            if(values.isEmpty()) {
+                continue;
+            }
+            for(String value : values.split("\\s+")) {
+                if(count == FEATURE_COUNT) {
+                    throw new IOException(file + ": more than " + FEATURE_COUNT + " weights");
+                }
+                try {
+                    weights[count++] = Double.parseDouble(value);
+                } catch(NumberFormatException e) {
+                    throw new IOException(file + ": bad weight " + value, e);
+                }
+            }
+        }
+        if(count != FEATURE_COUNT) {
+            throw new IOException(file + ": expected " + FEATURE_COUNT + " weights, found " + count);
+        }
+        return weights;
+    }
+
+    /**
+     * Writes weights with a comment line, replacing the file only once the new
+     * one is complete so that an interrupted write leaves the old one intact.
+     */
+    public static void writeWeights(Path file, double[] weights, String comment) throws IOException {
+        StringBuilder text = new StringBuilder("# ").append(comment).append('\n');
+        for(int i = 0; i < weights.length; i++) {
+            text.append(i > 0 ? " " : "").append(weights[i]);
+        }
+        text.append('\n');
+
+        Path parent = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, text.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Creates an autoplayer for boards of the given size. Candidates are scored
+     * on the pool, or on the calling thread when the pool is null.
+     */
+    public TetrisAutoplayer(int cols, int rows, double[] weights, ForkJoinPool pool) {
+        this.cols = cols;
+        this.rows = rows;
+        this.width = cols + PAD;
+        this.height = rows + PAD;
+        this.weights = new double[FEATURE_COUNT];
+        setWeights(weights);
+        this.pool = pool;
+        int states = ROTATION_COUNT * width * height;
+        this.scores = new double[states];
+        this.path = new int[states];
+        this.pathMoves = new int[states];
+        this.pathLength = -1;
+        this.root = new Search(this);
+        this.searches = pool != null ? ThreadLocal.withInitial(() -> new Search(this)) : null;
+        this.search = pool != null ? null : new Search(this);
+    }
+
+    /**
+     * Replaces the weights used from the next plan on, so that one autoplayer
+     * and its scratch space can be reused across many sets of weights.
+     */
+    public void setWeights(double[] weights) {
+        if(weights.length != FEATURE_COUNT) {
+            throw new IllegalArgumentException("expected " + FEATURE_COUNT + " weights, got " + weights.length);
+        }
+        System.arraycopy(weights, 0, this.weights, 0, FEATURE_COUNT);
+    }
+
+    /**
+     * Plans the current piece from where it is now, with the next piece as a
+     * second ply when it is known. Returns the number of moves to its chosen
+     * resting place, or -1 if the piece has nowhere to go.
+     */
+    public int plan(TetrisBoard board, TetrisGame.TileType current, TetrisGame.TileType next, int x, int y, int rotation) {
+        int count = root.explore(board, current, x, y, rotation);
+        if(count == 0) {
+            return pathLength = -1;
+        }
+
+        Candidates candidates = new Candidates(this, board, current, next, 0, count);
+        if(pool != null) {
+            pool.invoke(candidates);
+        } else {
+            candidates.compute();
+        }
+
+        int best = 0;
+        for(int i = 1; i < count; i++) {
+            if(scores[i] > scores[best]) {
+                best = i;
+            }
+        }
+
+        int length = 0;
+        for(int state = root.finals[best]; state >= 0; state = root.parents[state]) {
+            path[length++] = state;
+        }
+        for(int i = 0, j = length - 1; i < j; i++, j--) {
+            int state = path[i];
+            path[i] = path[j];
+            path[j] = state;
+        }
+        for(int i = 1; i < length; i++) {
+            pathMoves[i - 1] = root.moves[path[i]];
+        }
+        return pathLength = length - 1;
+    }
+
+    public int getMove(int step) {
+        return pathMoves[step];
+    }
+
+    /**
+     * Returns the column the piece is at before the given step of the last
+     * plan; the step after the last move is its resting place.
+     */
+    public int getColumn(int step) {
+        return path[step] % width - PAD;
+    }
+
+    public int getRow(int step) {
+        return path[step] / width % height - PAD;
+    }
+
+    public int getRotation(int step) {
+        return path[step] / (width * height);
+    }
+
+    public double evaluate(TetrisBoard board, int lines) {
+        int bumpiness = 0;
+        int wells = 0;
+        int previous = rows;
+        for(int x = 0; x < cols; x++) {
+            int height = board.getColumnHeight(x);
+            int right = x < cols - 1 ? board.getColumnHeight(x + 1) : rows;
+            if(x > 0) {
+                bumpiness += Math.abs(height - previous);
+            }
+            wells += Math.max(0, Math.min(previous, right) - height);
+            previous = height;
+        }
+
+        return weights[HEIGHT] * board.getAggregateHeight() + weights[LINES] * lines + weights[HOLES] * board.getHoles()
+                + weights[BUMPINESS] * bumpiness + weights[WELLS] * wells;
+    }
+
+    private double score(TetrisBoard board, TetrisGame.TileType current, TetrisGame.TileType next, int state, Search search) {
+        TetrisBoard placed = search.placed;
+        placed.copyFrom(board);
+        placed.addPiece(current, state % width - PAD, state / width % height - PAD, state / (width * height));
+        int lines = placed.checkLines();
+        if(next == null) {
+            return evaluate(placed, lines);
+        }
+
+        // no placement at all means the next piece cannot spawn, which ends the game
+        double best = Double.NEGATIVE_INFINITY;
+        int count = search.explore(placed, next, next.getSpawnColumn(), next.getSpawnRow(), 0);
+        for(int i = 0; i < count; i++) {
+            int end = search.finals[i];
+            search.after.copyFrom(placed);
+            search.after.addPiece(next, end % width - PAD, end / width % height - PAD, end / (width * height));
+            int cleared = search.after.checkLines();
+            best = Math.max(best, evaluate(search.after, lines + cleared));
+        }
+        return best;
+    }
+
+    private static final class Search {
+
+        private final TetrisAutoplayer owner;
+        private final TetrisBoard placed;
+        private final TetrisBoard after;
+        private final int[] queue;
+        private final int[] parents;
+        private final int[] stamps;
+        private final int[] restingStamps;
+        private final byte[] moves;
+        private final int[] finals;
+        private int stamp;
+
+        Search(TetrisAutoplayer owner) {
+            int states = owner.scores.length;
+            this.owner = owner;
+            this.placed = new TetrisBoard(owner.cols, owner.rows, false);
+            this.after = new TetrisBoard(owner.cols, owner.rows, false);
+            this.queue = new int[states];
+            this.parents = new int[states];
+            this.stamps = new int[states];
+            this.restingStamps = new int[states];
+            this.moves = new byte[states];
+            this.finals = new int[states];
+        }
+
+        /**
+         * Finds every resting place reachable from the given position and
+         * returns how many were stored in finals, with the way back to the
+         * start left in parents and moves. Of several that fill the same cells
+         * only the one found first, and so the one with fewest moves, is kept.
+         */
+        int explore(TetrisBoard board, TetrisGame.TileType type, int x, int y, int rotation) {
+            if(!board.isValidAndEmpty(type, x, y, rotation)) {
+                return 0;
+            }
+            if(++stamp == 0) {
+                Arrays.fill(stamps, 0);
+                Arrays.fill(restingStamps, 0);
+                stamp = 1;
+            }
+
+            int width = owner.width;
+            int area = width * owner.height;
+            int start = rotation * area + (y + PAD) * width + x + PAD;
+            int head = 0;
+            int tail = 0;
+            int count = 0;
+            stamps[start] = stamp;
+            parents[start] = -1;
+            queue[tail++] = start;
+
+            while(head < tail) {
+                int state = queue[head++];
+                int r = state / area;
+                int row = state / width % owner.height - PAD;
+                int col = state % width - PAD;
+                boolean resting = true;
+
+                for(int move = 0; move < MOVE_COUNT; move++) {
+                    int nextCol = col;
+                    int nextRow = row;
+                    int nextRotation = r;
+                    switch(move) {
+                    case LEFT:
+                        nextCol--;
+                        break;
+                    case RIGHT:
+                        nextCol++;
+                        break;
+                    case CLOCKWISE:
+                    case ANTICLOCKWISE:
+                        nextRotation = move == CLOCKWISE ? (r == 3 ? 0 : r + 1) : (r == 0 ? 3 : r - 1);
+                        nextCol = board.kickColumn(type, col, nextRotation);
+                        nextRow = board.kickRow(type, row, nextRotation);
+                        break;
+                    default:
+                        nextRow++;
+                        break;
+                    }
+
+                    if(!board.isValidAndEmpty(type, nextCol, nextRow, nextRotation)) {
+                        continue;
+                    }
+                    if(move == DOWN) {
+                        resting = false;
+                    }
+                    int next = nextRotation * area + (nextRow + PAD) * width + nextCol + PAD;
+                    if(stamps[next] != stamp) {
+                        stamps[next] = stamp;
+                        parents[next] = state;
+                        moves[next] = (byte)move;
+                        queue[tail++] = next;
+                    }
+                }
+
+                if(resting) {
+                    int same = SAME_SHAPE[type.ordinal()][r];
+                    int sameCol = col + type.getLeftInset(r) - type.getLeftInset(same);
+                    int sameRow = row + type.getTopInset(r) - type.getTopInset(same);
+                    int key = same * area + (sameRow + PAD) * width + sameCol + PAD;
+                    if(restingStamps[key] != stamp) {
+                        restingStamps[key] = stamp;
+                        finals[count++] = state;
                     }
                 }
             }
-            return -1;
+            return count;
         }
-        
+
     }
 
+    private static final class Candidates extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TetrisAutoplayer owner;
+        private final TetrisBoard board;
+        private final TetrisGame.TileType current;
+        private final TetrisGame.TileType next;
+        private final int from;
+        private final int to;
+
+        Candidates(TetrisAutoplayer owner, TetrisBoard board, TetrisGame.TileType current, TetrisGame.TileType next, int from, int to) {
+            this.owner = owner;
+            this.board = board;
+            this.current = current;
+            this.next = next;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= GRAIN) {
+                Search search = owner.searches != null ? owner.searches.get() : owner.search;
+                for(int i = from; i < to; i++) {
+                    owner.scores[i] = owner.score(board, current, next, owner.root.finals[i], search);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Candidates(owner, board, current, next, from, middle), new Candidates(owner, board, current, next, middle, to));
+            }
+        }
+
+    }
+
+}
+
+/**
+ * Tunes the autoplayer's weights with a genetic algorithm. Candidates play
+ * whole games through TetrisCore, so they follow the same rules as the game
+ * itself, and games run in parallel across a ForkJoinPool. Every candidate in
+ * a generation plays the same piece sequences, fixed by seeds drawn for that
+ * generation, so their scores are compared on equal terms. The best weights of
+ * each generation are written to the checkpoint file, which also seeds the
+ * population when training is restarted. A checkpoint can be given to
+ * TetrisGame to have its AI player use those weights.
+ *
+ * <pre>
+ * java TetrisTrainer [generations] [population] [games] [pieces] [plies] [threads] [seed] [checkpoint]
+ * </pre>
+ */
+class TetrisTrainer {
+
+    private static final int COLS = TetrisGame.BoardPanel.COL_COUNT;
+    private static final int ROWS = TetrisGame.BoardPanel.ROW_COUNT;
+
+    // each generation the weakest share of the population is replaced by
+    // children of the two fittest in a random tournament
+    private static final double OFFSPRING_SHARE = 0.3;
+    private static final double TOURNAMENT_SHARE = 0.1;
+    private static final double MUTATION_RATE = 0.05;
+    private static final double MUTATION_STEP = 0.2;
+
+    private static final int GRAIN = 1;
+
+    private final int games;
+    private final int pieces;
+    private final boolean lookahead;
+    private final ForkJoinPool pool;
+    private final Random random;
+    private final double[][] population;
+    private final double[] fitness;
+    private final long[] seeds;
+    private final int[] scores;
+    // one autoplayer per worker thread, given each candidate's weights in turn
+    private final ThreadLocal<TetrisAutoplayer> autoplayers =
+            ThreadLocal.withInitial(() -> new TetrisAutoplayer(COLS, ROWS, TetrisAutoplayer.getDefaultWeights(), null));
+
+    TetrisTrainer(int populationSize, int games, int pieces, boolean lookahead, int threads, long seed, double[] start) {
+        if(populationSize < 2 || games < 1 || pieces < 1) {
+            throw new IllegalArgumentException("population " + populationSize + ", games " + games + ", pieces " + pieces);
+        }
+        this.games = games;
+        this.pieces = pieces;
+        this.lookahead = lookahead;
+        this.pool = new ForkJoinPool(threads);
+        this.random = new Random(seed);
+        this.population = new double[populationSize][];
+        this.fitness = new double[populationSize];
+        this.seeds = new long[games];
+        this.scores = new int[populationSize * games];
+
+        population[0] = normalize(start.clone());
+        for(int i = 1; i < populationSize; i++) {
+            double[] weights = new double[TetrisAutoplayer.FEATURE_COUNT];
+            for(int j = 0; j < weights.length; j++) {
+                weights[j] = random.nextDouble() * 2.0 - 1.0;
+            }
+            population[i] = normalize(weights);
+        }
+    }
+
+    /**
+     * Plays one game with the autoplayer's current weights until it ends or the
+     * piece limit is reached, and returns its score.
+     */
+    public static int play(TetrisAutoplayer autoplayer, long seed, int pieces, boolean lookahead) {
+        TetrisCore core = new TetrisCore(new TetrisBoard(COLS, ROWS, false), new Random(seed));
+        core.resetGame();
+
+        for(int placed = 0; placed < pieces && !core.isGameOver(); placed++) {
+            int moves = autoplayer.plan(core.getBoard(), core.getPieceType(), lookahead ? core.getNextPieceType() : null,
+                    core.getPieceCol(), core.getPieceRow(), core.getPieceRotation());
+            if(moves < 0) {
+                break;
+            }
+            for(int i = 0; i < moves; i++) {
+                int rotation = core.getPieceRotation();
+                switch(autoplayer.getMove(i)) {
+                case TetrisAutoplayer.LEFT:
+                    core.shiftPiece(-1);
+                    break;
+                case TetrisAutoplayer.RIGHT:
+                    core.shiftPiece(1);
+                    break;
+                case TetrisAutoplayer.CLOCKWISE:
+                    core.rotatePiece((rotation == 3) ? 0 : rotation + 1);
+                    break;
+                case TetrisAutoplayer.ANTICLOCKWISE:
+                    core.rotatePiece((rotation == 0) ? 3 : rotation - 1);
+                    break;
+                default:
+                    core.updateGame();
+                    break;
+                }
+            }
+            while(!core.updateGame()) {
+                // the planned resting place locks on the next step
+            }
+        }
+        return core.getScore();
+    }
+
+    /**
+     * Scores every candidate on a fresh set of piece sequences, then replaces
+     * the weakest with offspring. Returns the index of the best candidate,
+     * whose weights stay in the population.
+     */
+    public int evolve() {
+        for(int g = 0; g < games; g++) {
+            seeds[g] = random.nextLong();
+        }
+        pool.invoke(new Range(job -> {
+            TetrisAutoplayer autoplayer = autoplayers.get();
+            autoplayer.setWeights(population[job / games]);
+            scores[job] = play(autoplayer, seeds[job % games], pieces, lookahead);
+        }, 0, scores.length));
+
+        Integer[] order = new Integer[population.length];
+        for(int i = 0; i < population.length; i++) {
+            long total = 0;
+            for(int g = 0; g < games; g++) {
+                total += scores[i * games + g];
+            }
+            fitness[i] = (double)total / games;
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(fitness[b], fitness[a]));
+        int best = order[0];
+
+        int offspring = Math.max(1, (int)(population.length * OFFSPRING_SHARE));
+        int tournament = Math.max(2, (int)(population.length * TOURNAMENT_SHARE));
+        double[][] children = new double[offspring][];
+        for(int i = 0; i < offspring; i++) {
+            children[i] = breed(tournament);
+        }
+        for(int i = 0; i < offspring; i++) {
+            population[order[population.length - 1 - i]] = children[i];
+        }
+        return best;
+    }
+
+    public double[] getWeights(int candidate) {
+        return population[candidate].clone();
+    }
+
+    public double getFitness(int candidate) {
+        return fitness[candidate];
+    }
+
+    // the child lies between the two tournament winners, nearer the fitter one
+    private double[] breed(int tournament) {
+        int first = -1;
+        int second = -1;
+        for(int i = 0; i < tournament; i++) {
+            int pick = random.nextInt(population.length);
+            if(first < 0 || fitness[pick] > fitness[first]) {
+                second = first;
+                first = pick;
+            } else if(second < 0 || fitness[pick] > fitness[second]) {
+                second = pick;
+            }
+        }
+
+        double a = fitness[first];
+        double b = fitness[second];
+        if(a + b <= 0.0) {
+            a = b = 1.0;
+        }
+        double[] child = new double[TetrisAutoplayer.FEATURE_COUNT];
+        for(int j = 0; j < child.length; j++) {
+            child[j] = a * population[first][j] + b * population[second][j];
+        }
+        normalize(child);
+        if(random.nextDouble() < MUTATION_RATE) {
+            child[random.nextInt(child.length)] += (random.nextDouble() * 2.0 - 1.0) * MUTATION_STEP;
+        }
+        return normalize(child);
+    }
+
+    // the autoplayer only compares scores, so only the direction of the weights matters
+    private static double[] normalize(double[] weights) {
+        double length = 0.0;
+        for(double weight : weights) {
+            length += weight * weight;
+        }
+        length = Math.sqrt(length);
+        if(length > 0.0) {
+            for(int i = 0; i < weights.length; i++) {
+                weights[i] /= length;
+            }
+        }
+        return weights;
+    }
+
+    private static final class Range extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final IntConsumer action;
+        private final int from;
+        private final int to;
+
+        Range(IntConsumer action, int from, int to) {
+            this.action = action;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= GRAIN) {
+                for(int i = from; i < to; i++) {
+                    action.accept(i);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Range(action, from, middle), new Range(action, middle, to));
+            }
+        }
+
+    }
+
+    public static void main(String[] args) throws IOException {
+        int generations = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int populationSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int games = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int pieces = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+        int plies = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+        int threads = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+        long seed = args.length > 6 ? Long.parseLong(args[6]) : 1L;
+        Path checkpoint = Paths.get(args.length > 7 ? args[7] : "tetris-weights.txt");
+        if(plies != 1 && plies != 2) {
+            throw new IllegalArgumentException("plies must be 1 or 2, got " + plies);
+        }
+
+        double[] start = TetrisAutoplayer.getDefaultWeights();
+        if(Files.exists(checkpoint)) {
+            start = TetrisAutoplayer.readWeights(checkpoint);
+            System.out.println("resuming from " + checkpoint);
+        }
+
+        TetrisTrainer trainer = new TetrisTrainer(populationSize, games, pieces, plies == 2, threads, seed, start);
+        for(int generation = 1; generation <= generations; generation++) {
+            long startTime = System.nanoTime();
+            int best = trainer.evolve();
+            double[] weights = trainer.getWeights(best);
+            String summary = String.format("generation %d: mean score %.1f over %d games of up to %d pieces",
+                    generation, trainer.getFitness(best), games, pieces);
+            TetrisAutoplayer.writeWeights(checkpoint, weights, summary);
+            System.out.printf("%s, %s (%.1f s)%n", summary, Arrays.toString(weights), (System.nanoTime() - startTime) / 1e9);
+        }
+        trainer.pool.shutdown();
+    }
 
-}
\ No newline at end of file
+}